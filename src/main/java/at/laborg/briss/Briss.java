@@ -38,10 +38,19 @@ final class Briss {
 
 		for(String a : args) {
 			if(a.equalsIgnoreCase("-h") || a.equalsIgnoreCase("--help")) {
-				System.out.println("Usage:\n\tbriss [-s SOURCE] [-d DESTINATION] [-c CROPARGS]");
+				System.out.println("Usage:\n\tbriss [-s SOURCE] [-d DESTINATION] [-c CROPARGS | [-p] [-v]] [-r] [-f] [-z LEVEL]");
 				System.out.println("CROPARGS are in the format: part1_page1,part2_page1,...!part1_page2,part2_page2 \n where each part consists of 4 numbers: top/left/bottom/right");
 				System.out.println("You can use the GUI to get these (use File/Show Crop Command)");
 				System.out.println("split an a4 page into 2 a5:\n -c 0/0/0.5/0,0.5/0/0/0:0/0/0.5/0,0.5/0/0/0");
+				System.out.println("-p auto crops every page on its own instead of all similar pages alike\n (for documents whose content moves from page to page, e.g. scans)");
+				System.out.println("-v auto crops to the bounding box of the text, graphics and images the pages draw,\n without rendering them (fast, but not for scans)");
+				System.out.println("-r removes the images and forms the crops hide entirely from the output,\n instead of keeping them hidden (smaller files)");
+				System.out.println("-f writes the output with compressed object streams and cross-reference stream (PDF 1.5)");
+				System.out.println("-z LEVEL recompresses the output's flate compressed and uncompressed streams,\n from 0 (none) to 9 (best)");
+				System.out.println("The number of parallel preview renderers defaults to the number of cores;\n override with: java -Dbriss.renderThreads=N -jar ...");
+				System.out.println("Previews merge pages until adding more stops changing them, at most 30 per cluster;\n override the limit with -Dbriss.maxPreviewPages=N");
+				System.out.println("Rendered previews are cached in java.io.tmpdir/briss-render-cache (256 MB);\n override with -Dbriss.renderCache.dir=DIR and -Dbriss.renderCache.maxMB=N (0 disables)");
+				System.out.println("Source PDFs are read on demand through a RandomAccessFile;\n memory map them instead with -Dbriss.mapSource=true");
 				return;
 			}
 			else
@@ -19,17 +19,24 @@ package at.laborg.briss;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletionException;
 
 import at.laborg.briss.exception.CropException;
 import at.laborg.briss.model.ClusterDefinition;
 import at.laborg.briss.model.CropDefinition;
 import at.laborg.briss.model.CropFinder;
+import at.laborg.briss.model.CropRectangle;
 import at.laborg.briss.model.PageCluster;
 import at.laborg.briss.utils.BrissFileHandling;
 import at.laborg.briss.utils.ClusterCreator;
 import at.laborg.briss.utils.ClusterRenderWorker;
 import at.laborg.briss.utils.DocumentCropper;
+import at.laborg.briss.utils.DocumentSession;
+import at.laborg.briss.utils.PageCropWorker;
+import at.laborg.briss.utils.PageWorker;
+import at.laborg.briss.utils.VectorCropFinder;
 import at.laborg.briss.utils.CropParser;
 
 import com.itextpdf.text.DocumentException;
@@ -37,43 +44,128 @@ import com.itextpdf.text.DocumentException;
 final class BrissCMD {
 	private BrissCMD() {}
 
+	// dots printed for the progress of a render job
+	private static final int PROGRESS_DOTS = 20;
+
 	public static void autoCrop(final String[] args) {
 		CommandValues workDescription = CommandValues.parseToWorkDescription(args);
 		if (!CommandValues.isValidJob(workDescription))
 			return;
 		System.out.println("Clustering PDF: " + workDescription.getSourceFile());
-		ClusterDefinition clusterDefinition;
-		try {
-			clusterDefinition = ClusterCreator.clusterPages(workDescription.getSourceFile(), null);
+		// the source is parsed once, for clustering as well as cropping
+		try (DocumentSession session = DocumentSession.open(workDescription.getSourceFile())) {
+			if (workDescription.isCropFromContent()) {
+				autoCropFromContent(workDescription, session);
+			} else if (workDescription.isPerPageCrop()) {
+				autoCropPerPage(workDescription, session);
+			} else {
+				autoCrop(workDescription, session);
+			}
 		} catch (IOException e1) {
 			System.out.println("Error occurred while clustering.");
 			e1.printStackTrace(System.out);
-			return;
 		}
+	}
+
+	private static void autoCrop(final CommandValues workDescription, final DocumentSession session) {
+		ClusterDefinition clusterDefinition = ClusterCreator.clusterPages(session, null);
 		System.out.println("Created " + clusterDefinition.getClusterList().size() + " clusters.");
 		ClusterRenderWorker cRW = new ClusterRenderWorker(workDescription.getSourceFile(), clusterDefinition);
-		cRW.start();
 		System.out.print("Starting to render clusters.");
-		while (cRW.isAlive()) {
-			System.out.print(".");
-			try {
-				Thread.sleep(500);
-			} catch (InterruptedException e) {
-			}
-		}
-		System.out.println("finished!");
+		runWithProgress(cRW);
 		System.out.println("Calculating crop rectangles.");
 		try {
 			for (PageCluster cluster : clusterDefinition.getClusterList()) {
-				Float[] auto = CropFinder.calcCropRatioOfImg(cluster.getImageData().getPreviewImage());
+				CropRectangle auto = CropFinder.calcCropRatioOfImg(cluster.getImageData().getPreviewImage());
 				cluster.addCropRatio(auto);
 			}
 			CropDefinition cropDefintion = CropDefinition.createCropDefinition(
 					workDescription.getSourceFile(),
 					workDescription.getDestFile(), clusterDefinition);
-			System.out.println("Starting to crop files.");
-			DocumentCropper.crop(cropDefintion);
-			System.out.println("Successfully cropped to:" + workDescription.getDestFile().getAbsolutePath());
+			crop(workDescription, cropDefintion, session);
+		} catch (IOException | IllegalArgumentException | CropException | DocumentException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static void autoCropPerPage(final CommandValues workDescription, final DocumentSession session) {
+		PageCropWorker cropWorker = new PageCropWorker(session);
+		System.out.print("Calculating crop rectangles of " + cropWorker.getNrOfPages() + " pages.");
+		runWithProgress(cropWorker);
+		try {
+			CropDefinition cropDefinition = CropDefinition.createCropDefinition(
+					workDescription.getSourceFile(),
+					workDescription.getDestFile(), new ClusterDefinition());
+			for (int pgNum = 1; pgNum <= cropWorker.getNrOfPages(); pgNum++) {
+				CropRectangle auto = cropWorker.getCrop(pgNum);
+				// pages which couldn't be rendered stay uncropped
+				if (auto != null) {
+					cropDefinition.overrideRectanglesForPage(pgNum, Collections.singletonList(auto));
+				}
+			}
+			crop(workDescription, cropDefinition, session);
+		} catch (IOException | IllegalArgumentException | CropException | DocumentException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Writes the destination, with the output options of the command line.
+	 */
+	private static void crop(final CommandValues workDescription, final CropDefinition cropDefinition,
+			final DocumentSession session) throws IOException, CropException, DocumentException {
+		cropDefinition.setPruneContent(workDescription.isPruneContent());
+		cropDefinition.setFullCompression(workDescription.isFullCompression());
+		cropDefinition.setCompressionLevel(workDescription.getCompressionLevel());
+		System.out.println("Starting to crop files.");
+		DocumentCropper.crop(cropDefinition, session);
+		System.out.println("Successfully cropped to:" + workDescription.getDestFile().getAbsolutePath());
+	}
+
+	/**
+	 * Runs the worker and waits for it to finish, printing a dot whenever
+	 * another 5% of its work is done.
+	 */
+	private static void runWithProgress(final PageWorker worker) {
+		worker.setProgressListener((doneUnits, totalUnits) -> {
+			if (doneUnits * PROGRESS_DOTS / totalUnits > (doneUnits - 1) * PROGRESS_DOTS / totalUnits) {
+				System.out.print(".");
+			}
+		});
+		worker.start();
+		try {
+			worker.getCompletion().join();
+		} catch (CompletionException e) {
+			// the worker's thread has reported the cause already
+		}
+		System.out.println("finished!");
+	}
+
+	private static void autoCropFromContent(final CommandValues workDescription, final DocumentSession session) {
+		System.out.println("Calculating crop rectangles from the page content.");
+		try {
+			VectorCropFinder cropFinder = new VectorCropFinder(session);
+			CropDefinition cropDefinition;
+			if (workDescription.isPerPageCrop()) {
+				cropDefinition = CropDefinition.createCropDefinition(
+						workDescription.getSourceFile(),
+						workDescription.getDestFile(), new ClusterDefinition());
+				for (int pgNum = 1; pgNum <= session.getPageCount(); pgNum++) {
+					CropRectangle auto = cropFinder.findCrop(pgNum);
+					// blank pages stay uncropped
+					if (auto != null) {
+						cropDefinition.overrideRectanglesForPage(pgNum, Collections.singletonList(auto));
+					}
+				}
+			} else {
+				ClusterDefinition clusterDefinition = ClusterCreator.clusterPages(session, null);
+				System.out.println("Created " + clusterDefinition.getClusterList().size() + " clusters.");
+				cropFinder.addCrops(clusterDefinition);
+				cropDefinition = CropDefinition.createCropDefinition(
+						workDescription.getSourceFile(),
+						workDescription.getDestFile(), clusterDefinition);
+			}
+			crop(workDescription, cropDefinition, session);
 		} catch (IOException | IllegalArgumentException | CropException | DocumentException e) {
 			e.printStackTrace();
 		}
@@ -84,45 +176,38 @@ final class BrissCMD {
 		if (!CommandValues.isValidJob(workDescription))
 			return;
 		System.out.println("Clustering PDF: " + workDescription.getSourceFile());
-		ClusterDefinition clusterDefinition;
-		try {
-			clusterDefinition = ClusterCreator.clusterPages(workDescription.getSourceFile(), null);
+		// the source is parsed once, for clustering as well as cropping
+		try (DocumentSession session = DocumentSession.open(workDescription.getSourceFile())) {
+			customCrop(workDescription, session);
 		} catch (IOException e1) {
 			System.out.println("Error occurred while clustering.");
 			e1.printStackTrace(System.out);
-			return;
 		}
+	}
+
+	private static void customCrop(final CommandValues workDescription, final DocumentSession session) {
+		ClusterDefinition clusterDefinition = ClusterCreator.clusterPages(session, null);
 		System.out.println("Created " + clusterDefinition.getClusterList().size() + " clusters.");
 		if(workDescription.getCrop().size() != clusterDefinition.getClusterList().size()) {
 			System.err.println("You need to specify a crop definition for ALL clusters!");
 			return;
 		}
 		ClusterRenderWorker cRW = new ClusterRenderWorker(workDescription.getSourceFile(), clusterDefinition);
-		cRW.start();
 		System.out.print("Starting to render clusters.");
-		while (cRW.isAlive()) {
-			System.out.print(".");
-			try {
-				Thread.sleep(500);
-			} catch (InterruptedException e) {
-			}
-		}
-		System.out.println("finished!");
+		runWithProgress(cRW);
 		System.out.println("setting crop rectangles.");
 		try {
 			// the config cluster definition applies here
 			for(int i = 0; i < clusterDefinition.getClusterList().size(); i++) {
-				List<Float[]> cluserrat = workDescription.getCrop().get(i);
-				for(Float[] cur : cluserrat) {
+				List<CropRectangle> cluserrat = workDescription.getCrop().get(i);
+				for(CropRectangle cur : cluserrat) {
 					clusterDefinition.getClusterList().get(i).addCropRatio(cur);
 				}
 			}
 			CropDefinition cropDefinition = CropDefinition.createCropDefinition(
 					workDescription.getSourceFile(),
 					workDescription.getDestFile(), clusterDefinition);
-			System.out.println("Starting to crop files.");
-			DocumentCropper.crop(cropDefinition);
-			System.out.println("Successfully cropped to:" + workDescription.getDestFile().getAbsolutePath());
+			crop(workDescription, cropDefinition, session);
 		} catch (IOException | IllegalArgumentException | CropException | DocumentException e) {
 			e.printStackTrace();
 		}
@@ -132,10 +217,22 @@ final class BrissCMD {
 		private static final String SOURCE_FILE_CMD = "-s";
 		private static final String DEST_FILE_CMD = "-d";
 		private static final String CROP_CMD = "-c";
+		private static final String PER_PAGE_CMD = "-p";
+		private static final String CONTENT_CMD = "-v";
+		private static final String PRUNE_CMD = "-r";
+		private static final String FULL_COMPRESSION_CMD = "-f";
+		private static final String COMPRESSION_LEVEL_CMD = "-z";
 
 		private File sourceFile;
 		private File destFile;
-		private List<List<Float[]>> crop = null;
+		private List<List<CropRectangle>> crop = null;
+		private boolean perPageCrop = false;
+		private boolean cropFromContent = false;
+		private boolean pruneContent = false;
+		private boolean fullCompression = false;
+		private int compressionLevel = CropDefinition.KEEP_COMPRESSION_LEVEL;
+		// the argument of -z if it isn't a number
+		private String invalidCompressionLevel = null;
 
 		static CommandValues parseToWorkDescription(final String[] args) {
 			CommandValues commandValues = new CommandValues();
@@ -153,6 +250,18 @@ final class BrissCMD {
 					if (i < (args.length - 1)) {
 						commandValues.setCropDefinition(args[i + 1]);
 					}
+				} else if (args[i].trim().equalsIgnoreCase(PER_PAGE_CMD)) {
+					commandValues.perPageCrop = true;
+				} else if (args[i].trim().equalsIgnoreCase(CONTENT_CMD)) {
+					commandValues.cropFromContent = true;
+				} else if (args[i].trim().equalsIgnoreCase(PRUNE_CMD)) {
+					commandValues.pruneContent = true;
+				} else if (args[i].trim().equalsIgnoreCase(FULL_COMPRESSION_CMD)) {
+					commandValues.fullCompression = true;
+				} else if (args[i].trim().equalsIgnoreCase(COMPRESSION_LEVEL_CMD)) {
+					if (i < (args.length - 1)) {
+						commandValues.setCompressionLevel(args[i + 1]);
+					}
 				}
 				i++;
 			}
@@ -169,7 +278,20 @@ final class BrissCMD {
 			crop = CropParser.parse (string);
 		}
 
+		private void setCompressionLevel(final String level) {
+			try {
+				compressionLevel = Integer.parseInt(level);
+			} catch (NumberFormatException e) {
+				invalidCompressionLevel = level;
+			}
+		}
+
 		private static boolean isValidJob(final CommandValues job) {
+			if (job.invalidCompressionLevel != null || job.getCompressionLevel() < CropDefinition.KEEP_COMPRESSION_LEVEL
+					|| job.getCompressionLevel() > CropDefinition.BEST_COMPRESSION_LEVEL) {
+				System.out.println("Compression level must be 0 to " + CropDefinition.BEST_COMPRESSION_LEVEL);
+				return false;
+			}
 			if (job.getSourceFile() == null) {
 				System.out.println("No source file submitted: try \"java -jar Briss.0.0.13 -s filename.pdf\"");
 				return false;
@@ -216,8 +338,48 @@ final class BrissCMD {
 		/**
 		 * @return the crop
 		 */
-		public List<List<Float[]>> getCrop() {
+		public List<List<CropRectangle>> getCrop() {
 			return crop;
 		}
+
+		/**
+		 * @return true if every page is auto cropped on its own instead of
+		 *         all pages of a cluster alike
+		 */
+		public boolean isPerPageCrop() {
+			return perPageCrop;
+		}
+
+		/**
+		 * @return true if the crops are the bounding boxes of the page
+		 *         content instead of found in rendered pages
+		 */
+		public boolean isCropFromContent() {
+			return cropFromContent;
+		}
+
+		/**
+		 * @return true if the images and forms the crops hide entirely are
+		 *         removed from the destination
+		 */
+		public boolean isPruneContent() {
+			return pruneContent;
+		}
+
+		/**
+		 * @return true if the destination is written with object and
+		 *         cross-reference streams
+		 */
+		public boolean isFullCompression() {
+			return fullCompression;
+		}
+
+		/**
+		 * @return the level the streams are recompressed with, or
+		 *         CropDefinition.KEEP_COMPRESSION_LEVEL
+		 */
+		public int getCompressionLevel() {
+			return compressionLevel;
+		}
 	}
 }
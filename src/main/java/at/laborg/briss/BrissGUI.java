@@ -25,18 +25,25 @@ import java.awt.event.ActionListener;
 import java.awt.event.ComponentEvent;
 import java.awt.event.ComponentListener;
 import java.awt.event.KeyEvent;
+import java.awt.image.BufferedImage;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.FileInputStream;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 
 import javax.swing.ImageIcon;
+import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JMenu;
@@ -59,7 +66,9 @@ import at.laborg.briss.gui.HelpDialog;
 import at.laborg.briss.gui.MergedPanel;
 import at.laborg.briss.gui.WrapLayout;
 import at.laborg.briss.model.ClusterDefinition;
+import at.laborg.briss.model.ClusterImageData;
 import at.laborg.briss.model.CropDefinition;
+import at.laborg.briss.model.CropRectangle;
 import at.laborg.briss.model.PageCluster;
 import at.laborg.briss.model.PageExcludes;
 import at.laborg.briss.model.WorkingSet;
@@ -68,11 +77,13 @@ import at.laborg.briss.utils.ClusterCreator;
 import at.laborg.briss.utils.ClusterRenderWorker;
 import at.laborg.briss.utils.DesktopHelper;
 import at.laborg.briss.utils.DocumentCropper;
+import at.laborg.briss.utils.DocumentSession;
+import at.laborg.briss.utils.PageImageStore;
 import at.laborg.briss.utils.PDFFileFilter;
 import at.laborg.briss.utils.PageNumberParser;
+import at.laborg.briss.utils.VectorCropFinder;
 import at.laborg.briss.utils.CropParser;
 
-import com.itextpdf.text.pdf.PdfReader;
 
 import com.itextpdf.text.DocumentException;
 
@@ -105,6 +116,10 @@ public class BrissGUI extends JFrame implements ActionListener,
 	private static final String MAXIMIZE_HEIGHT = "Maximize to height";
 	private static final String EXCLUDE_OTHER_PAGES = "Exclude other pages";
 	private static final String PREVIEW = "Preview";
+	private static final String CROP_FROM_CONTENT = "Auto crop to page content";
+	private static final String PRUNE_CONTENT = "Remove content outside the crops";
+	private static final String FULL_COMPRESSION = "Full compression (PDF 1.5)";
+	private static final String RECOMPRESS_STREAMS = "Recompress streams (best compression)";
 	private static final String DONATE = "Donate";
 	private static final String HELP = "Show help";
 	private static final String MAXIMIZE_SIZE = "Maximize to size (all)";
@@ -123,14 +138,31 @@ public class BrissGUI extends JFrame implements ActionListener,
 	private static final String DONATION_URI = "http://sourceforge.net/project/project_donations.php?group_id=320676";
 	private static final String RES_ICON_PATH = "/Briss_icon_032x032.gif";
 
+	// a preview is shown while rendering once it merges this many pages
+	private static final int MIN_PAGES_FOR_PREVIEW = 2;
+
 	private JPanel previewPanel;
 	private JProgressBar progressBar;
 	private List<MergedPanel> mergedPanels = null;
+	// the panels shown while rendering, by their cluster
+	private final Map<PageCluster, MergedPanel> previewPanels = new IdentityHashMap<>();
 	private final List<JMenuItem> conditionalMenuItems = new ArrayList<>();
+	private JCheckBoxMenuItem cropFromContentItem;
+	private JCheckBoxMenuItem pruneContentItem;
+	private JCheckBoxMenuItem fullCompressionItem;
+	private JCheckBoxMenuItem recompressStreamsItem;
 
 	private File lastOpenDir;
 
 	private WorkingSet workingSet;
+	// the parsed source file, shared by clustering and all crops of it
+	private DocumentSession documentSession;
+	// the pages rendered from the source file, reused when it's reloaded
+	private PageImageStore pageImageStore;
+	// the task clustering and rendering the current file, null once it's done
+	private ClusterPagesTask clusterTask;
+	// the task to start once the cancelled clusterTask is done
+	private ClusterPagesTask nextClusterTask;
 
 	public BrissGUI(String[] args) {
 		super("BRISS - BRIght Snippet Sire");
@@ -217,6 +249,18 @@ public class BrissGUI extends JFrame implements ActionListener,
 
 		actionMenu.add(   newJMI(CROP           , false, KeyEvent.VK_C, 0));
 		actionMenu.add(   newJMI(PREVIEW        , false, KeyEvent.VK_P, 0));
+		actionMenu.addSeparator();
+		// applies to the next load: auto crops from the content streams instead of the previews
+		cropFromContentItem = new JCheckBoxMenuItem(CROP_FROM_CONTENT);
+		actionMenu.add(cropFromContentItem);
+		// applies to crops and previews: drops the images and forms the crops hide entirely
+		pruneContentItem = new JCheckBoxMenuItem(PRUNE_CONTENT);
+		actionMenu.add(pruneContentItem);
+		// output options as well: smaller files, but written as a copy instead of an incremental update
+		fullCompressionItem = new JCheckBoxMenuItem(FULL_COMPRESSION);
+		actionMenu.add(fullCompressionItem);
+		recompressStreamsItem = new JCheckBoxMenuItem(RECOMPRESS_STREAMS);
+		actionMenu.add(recompressStreamsItem);
 
 		rectangleMenu.add(newJMI(MAXIMIZE_WIDTH , false, KeyEvent.VK_W, 0));
 		rectangleMenu.add(newJMI(MAXIMIZE_HEIGHT, false, KeyEvent.VK_H, 0));
@@ -358,7 +402,7 @@ public class BrissGUI extends JFrame implements ActionListener,
 		case SET_CROP: {
 			ClusterDefinition clusters = workingSet.getClusterDefinition();
 			String cropStr = JOptionPane.showInputDialog(this, "Crop Option: ", CropParser.cropToString(clusters.getAllRatios()));
-			List<List<Float[]>> rLL = CropParser.parse(cropStr);
+			List<List<CropRectangle>> rLL = CropParser.parse(cropStr);
 			for (int i = 0; i < rLL.size(); i++) {
 				clusters.getClusterList().get(i).setRatiosList(rLL.get(i));
 			}
@@ -401,7 +445,7 @@ public class BrissGUI extends JFrame implements ActionListener,
 		File tmpCropFileDestination = File.createTempFile("briss", ".pdf");
 		CropDefinition cropDefinition = CropDefinition.createCropDefinition(
 				workingSet.getSourceFile(), tmpCropFileDestination, workingSet.getClusterDefinition());
-		return DocumentCropper.crop(cropDefinition);
+		return crop(cropDefinition);
 	}
 
 	private File createAndExecuteCropJob(File source) throws IOException, DocumentException, CropException {
@@ -410,7 +454,18 @@ public class BrissGUI extends JFrame implements ActionListener,
 			return null;
 		CropDefinition cropDefinition = CropDefinition.createCropDefinition(
 				workingSet.getSourceFile(), cropDestinationFile, workingSet.getClusterDefinition());
-		return DocumentCropper.crop(cropDefinition);
+		return crop(cropDefinition);
+	}
+
+	/**
+	 * Crops with the output options selected in the Action menu.
+	 */
+	private File crop(final CropDefinition cropDefinition) throws IOException, DocumentException, CropException {
+		cropDefinition.setPruneContent(pruneContentItem.isSelected());
+		cropDefinition.setFullCompression(fullCompressionItem.isSelected());
+		cropDefinition.setCompressionLevel(recompressStreamsItem.isSelected() ? CropDefinition.BEST_COMPRESSION_LEVEL
+				: CropDefinition.KEEP_COMPRESSION_LEVEL);
+		return DocumentCropper.crop(cropDefinition, documentSession);
 	}
 
 	private void setIdleState(String stateMessage) {
@@ -424,32 +479,64 @@ public class BrissGUI extends JFrame implements ActionListener,
 		setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
 	}
 
-	private static int getNumPages(String fnm) throws IOException, PdfException {
+	private static int getNumPages(DocumentSession session) throws PdfException {
 		// preempt wasting time carefully cropping a file only to learn that the crops CANNOT be saved!
-		PdfReader reader = new PdfReader(new FileInputStream(fnm));  // https://stackoverflow.com/questions/53301158/itext-java-11-illegal-reflective-access-by-com-itextpdf-io-source-bytebufferran
-		if( reader.isEncrypted() ) {
+		if( session.isEncrypted() ) {
 			throw new PdfException("Password required to crop source file");
 		}
-		int rv = reader.getNumberOfPages();
-		reader.close();
-		return rv;
+		return session.getPageCount();
 	}
 
 	void importNewPdfFile(File loadFile) throws IOException, PdfException {
 		previewPanel.removeAll();
 		progressBar.setString("Loading new file - Creating merged previews");
 		lastOpenDir = loadFile.getParentFile();
-		int numPgs = getNumPages(loadFile.getAbsolutePath());
-		ClusterPagesTask clusterTask = new ClusterPagesTask(loadFile, getExcludedPages( numPgs ));
-		clusterTask.addPropertyChangeListener(this);
-		clusterTask.execute();
+		// parsed once here, then shared by clustering and all crops of this file
+		DocumentSession session = DocumentSession.open(loadFile);
+		int numPgs;
+		try {
+			numPgs = getNumPages(session);
+		} catch (PdfException e) {
+			session.close();
+			throw e;
+		}
+		startClustering(new ClusterPagesTask(session, getExcludedPages( numPgs ),
+				null, new PageImageStore(), cropFromContentItem.isSelected()));
 	}
 
 	private void reloadWithOtherExcludes() throws IOException, PdfException {
 		previewPanel.removeAll();
 		progressBar.setString("Reloading file - Creating merged previews");
-		int numPgs = getNumPages(workingSet.getSourceFile().getAbsolutePath());
-		ClusterPagesTask clusterTask = new ClusterPagesTask(workingSet.getSourceFile(), getExcludedPages(numPgs));
+		int numPgs = getNumPages(documentSession);
+		// only clusters whose preview pages changed are rendered again,
+		// and only from pages which were never rendered before
+		startClustering(new ClusterPagesTask(documentSession, getExcludedPages(numPgs),
+				workingSet.getClusterDefinition(), pageImageStore, cropFromContentItem.isSelected()));
+	}
+
+	private void startClustering(ClusterPagesTask newClusterTask) {
+		// cropping reads the session the task may be reading, too
+		conditionalMenuItems.forEach( jmi -> jmi.setEnabled(false) );
+		if (clusterTask != null) {
+			// the result of a task still running is outdated now; a session
+			// can't be read by two tasks at once, so the new task starts
+			// once the old one is done
+			clusterTask.removePropertyChangeListener(this);
+			clusterTask.cancelClustering();
+			ClusterPagesTask replacedTask = nextClusterTask;
+			nextClusterTask = newClusterTask;
+			if (replacedTask != null) {
+				replacedTask.releaseSession();
+			}
+			return;
+		}
+		executeClusterTask(newClusterTask);
+	}
+
+	private void executeClusterTask(ClusterPagesTask newClusterTask) {
+		clusterTask = newClusterTask;
+		mergedPanels = new ArrayList<>();
+		previewPanels.clear();
 		clusterTask.addPropertyChangeListener(this);
 		clusterTask.execute();
 	}
@@ -599,6 +686,76 @@ public class BrissGUI extends JFrame implements ActionListener,
 		}
 	}
 
+	/**
+	 * Shows the preview of a cluster which is still being rendered, in a
+	 * new panel or in place of an earlier one.
+	 *
+	 * @param clusterIndexes
+	 *            the position of every cluster in the cluster list
+	 */
+	private void showPreview(Map<PageCluster, Integer> clusterIndexes, PageCluster cluster, BufferedImage preview) {
+		MergedPanel shown = previewPanels.get(cluster);
+		if (shown != null) {
+			shown.setPreviewImage(preview);
+			return;
+		}
+		// keep the panels in the order of their clusters: find the first
+		// panel of a later cluster
+		int clusterIdx = clusterIndexes.get(cluster);
+		int low = 0;
+		int high = mergedPanels.size();
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (clusterIndexes.get(mergedPanels.get(middle).getCluster()) < clusterIdx) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		int panelIdx = low;
+		MergedPanel mp = new MergedPanel(cluster, this, preview);
+		previewPanels.put(cluster, mp);
+		mergedPanels.add(panelIdx, mp);
+		previewPanel.add(mp, panelIdx);
+		previewPanel.revalidate();
+	}
+
+	/**
+	 * @return true if the preview of a cluster should be shown (again) after
+	 *         the given number of its pages was rendered: the first time
+	 *         with MIN_PAGES_FOR_PREVIEW pages, then whenever the number
+	 *         doubled, and once it's complete
+	 */
+	private static boolean isPreviewToShow(int addedPages, int totalPages) {
+		return addedPages == totalPages
+				|| (addedPages >= MIN_PAGES_FOR_PREVIEW && Integer.bitCount(addedPages) == 1);
+	}
+
+	/**
+	 * Gives the panels shown while rendering their final preview and adds
+	 * the missing ones.
+	 */
+	private void completeMergedPanels(boolean autoCrop) {
+		previewPanel.removeAll();
+		mergedPanels = new ArrayList<>();
+		for (PageCluster cluster : workingSet.getClusterDefinition().getClusterList()) {
+			MergedPanel mp = previewPanels.get(cluster);
+			if (mp == null) {
+				mp = new MergedPanel(cluster, this, autoCrop);
+			} else {
+				mp.setPreviewImage(cluster.getImageData().getPreviewImage());
+				// crops placed while the preview was rendering make the auto crop obsolete
+				if (autoCrop && !mp.hasEditedCrops()) {
+					mp.addAutoCrop();
+				}
+			}
+			previewPanel.add(mp);
+			mergedPanels.add(mp);
+		}
+		previewPanels.clear();
+		previewPanel.revalidate();
+	}
+
 	private void createMergedPanels (boolean autoCrop) {
 		previewPanel.removeAll();
 		mergedPanels = new ArrayList<>();
@@ -614,9 +771,12 @@ public class BrissGUI extends JFrame implements ActionListener,
 		conditionalMenuItems.forEach( jmi -> jmi.setEnabled(true) );
 	}
 
-	private void setStateAfterClusteringFinished(ClusterDefinition newClusters, PageExcludes newPageExcludes, File newSource) {
-		updateWorkingSet(newClusters, newPageExcludes, newSource);
-		createMergedPanels (true);
+	private void setStateAfterClusteringFinished(ClusterDefinition newClusters, PageExcludes newPageExcludes,
+			DocumentSession newSession, PageImageStore newPageImageStore, boolean autoCropPreviews) {
+		updateWorkingSet(newClusters, newPageExcludes, newSession.getSourceFile());
+		pageImageStore = newPageImageStore;
+		setDocumentSession(newSession);
+		completeMergedPanels(autoCropPreviews);
 		progressBar.setString("Clustering and Rendering finished");
 		EnableConditionalGuiButtons();
 		setIdleState("");
@@ -624,12 +784,19 @@ public class BrissGUI extends JFrame implements ActionListener,
 		repaint();
 	}
 
+	/**
+	 * Replaces the session of the source file; a replaced session is closed.
+	 */
+	private void setDocumentSession(DocumentSession newSession) {
+		if (documentSession != null && documentSession != newSession) {
+			documentSession.close();
+		}
+		documentSession = newSession;
+	}
+
 	private void updateWorkingSet(ClusterDefinition newClusters, PageExcludes newPageExcludes, File newSource) {
 		if (workingSet == null) {
 			workingSet = new WorkingSet(newSource);
-		} else if (workingSet.getSourceFile().equals(newSource)) {
-			// just reload with other excludes
-			copyCropsToClusters(workingSet.getClusterDefinition(), newClusters);
 		}
 		workingSet.setSourceFile(newSource);
 		workingSet.setClusters(newClusters);
@@ -638,53 +805,164 @@ public class BrissGUI extends JFrame implements ActionListener,
 
 	private void copyCropsToClusters(ClusterDefinition oldClusters, ClusterDefinition newClusters) {
 		for (PageCluster newCluster : newClusters.getClusterList()) {
+			// copy the crops of each old cluster once, not once per page
+			Set<PageCluster> copiedClusters = new HashSet<>();
 			for (Integer pgNum : newCluster.getMemberPgNums()) {
 				PageCluster oldCluster = oldClusters.getClusterContainingPage(pgNum);
-				if (oldCluster != null) {
+				if (oldCluster != null && copiedClusters.add(oldCluster)) {
 					oldCluster.getCropRatioList().forEach(newCluster::addCropRatio);
 				}
 			}
 		}
 	}
 
-	private class ClusterPagesTask extends SwingWorker<Void, Void> {
-		private final File source;
+	private static final class PreviewUpdate {
+		private final PageCluster cluster;
+		private final BufferedImage preview;
+
+		PreviewUpdate(PageCluster cluster, BufferedImage preview) {
+			this.cluster = cluster;
+			this.preview = preview;
+		}
+	}
+
+	private class ClusterPagesTask extends SwingWorker<Void, PreviewUpdate> {
+		private final DocumentSession session;
 		private final PageExcludes pageExcludes;
+		private final ClusterDefinition previousClusterDefinition;
+		// the crops of the file shown now, kept if the same file is clustered again
+		private final ClusterDefinition cropsToKeep;
+		private final PageImageStore pageImageStore;
+		private final boolean cropFromContent;
 		private ClusterDefinition clusterDefinition = null;
+		private final Map<PageCluster, Integer> clusterIndexes = new IdentityHashMap<>();
+		private volatile ClusterRenderWorker renderWorker = null;
+		private volatile boolean cancelled = false;
 
-		public ClusterPagesTask(File source, PageExcludes pageExcludes) {
+		public ClusterPagesTask(DocumentSession session, PageExcludes pageExcludes,
+				ClusterDefinition previousClusterDefinition, PageImageStore pageImageStore,
+				boolean cropFromContent) {
 			super();
-			this.source = source;
+			this.session = session;
 			this.pageExcludes = pageExcludes;
+			this.previousClusterDefinition = previousClusterDefinition;
+			this.pageImageStore = pageImageStore;
+			this.cropFromContent = cropFromContent;
+			this.cropsToKeep = workingSet != null && workingSet.getSourceFile().equals(session.getSourceFile())
+					? workingSet.getClusterDefinition() : null;
+		}
+
+		/**
+		 * Makes the task stop after its current stage or, when rendering,
+		 * after the current pages; the result is dropped.
+		 */
+		void cancelClustering() {
+			cancelled = true;
+			ClusterRenderWorker worker = renderWorker;
+			if (worker != null) {
+				worker.cancel();
+			}
+		}
+
+		@Override
+		protected void process(List<PreviewUpdate> updates) {
+			if (cancelled)
+				return;
+			for (PreviewUpdate update : updates) {
+				showPreview(clusterIndexes, update.cluster, update.preview);
+			}
+		}
+
+		/**
+		 * Closes the session if it was opened for this task only, i.e.
+		 * neither the file shown nor the next task uses it.
+		 */
+		void releaseSession() {
+			if (session != documentSession && (nextClusterTask == null || nextClusterTask.session != session)) {
+				session.close();
+			}
 		}
 
 		@Override
 		protected void done() {
-			setStateAfterClusteringFinished(clusterDefinition, pageExcludes, source);
+			clusterTask = null;
+			if (cancelled) {
+				releaseSession();
+				// the session isn't read by this task anymore
+				ClusterPagesTask nextTask = nextClusterTask;
+				nextClusterTask = null;
+				if (nextTask != null) {
+					executeClusterTask(nextTask);
+				}
+				return;
+			}
+			try {
+				get();
+			} catch (InterruptedException | ExecutionException e) {
+				// a half-built clustering isn't shown
+				releaseSession();
+				if (workingSet != null) {
+					EnableConditionalGuiButtons();
+				}
+				setIdleState("");
+				JOptionPane.showMessageDialog(BrissGUI.this, String.valueOf(e.getCause()), emLOAD,
+						JOptionPane.ERROR_MESSAGE);
+				return;
+			}
+			// crops from the content replace those found in the previews
+			setStateAfterClusteringFinished(clusterDefinition, pageExcludes, session, pageImageStore, !cropFromContent);
 		}
 
 		@Override
 		protected Void doInBackground() {
-			try {
-				clusterDefinition = ClusterCreator.clusterPages(source, pageExcludes);
-				// System.out.println( "ClusterCreator.clusterPages done" );
-			} catch (IOException e1) {
-				// TODO Auto-generated catch block
-				e1.printStackTrace();
+			clusterDefinition = ClusterCreator.clusterPages(session, pageExcludes);
+			// System.out.println( "ClusterCreator.clusterPages done" );
+			if (cancelled)
 				return null;
-			}
-			int totalWorkUnits = clusterDefinition.getNrOfPagesToRender();
-			// System.out.format( "clusterDefinition.getNrOfPagesToRender() = %d\n", totalWorkUnits );
-			ClusterRenderWorker renderWorker = new ClusterRenderWorker(source, clusterDefinition);
-			renderWorker.start();
-			while (renderWorker.isAlive()) {
-				int percent = (int) ((renderWorker.workerUnitCounter / (float) totalWorkUnits) * 100);
-				setProgress(percent);
+			if (cropFromContent) {
 				try {
-					Thread.sleep(500);
-				} catch (InterruptedException e) {
+					new VectorCropFinder(session).addCrops(clusterDefinition);
+				} catch (IOException e) {
+					e.printStackTrace();
 				}
 			}
+			if (cropsToKeep != null) {
+				// copied before any panel exists: panels read the crops only when created
+				copyCropsToClusters(cropsToKeep, clusterDefinition);
+			}
+			if (previousClusterDefinition != null) {
+				clusterDefinition.reuseImageData(previousClusterDefinition);
+			}
+			List<PageCluster> clusterList = clusterDefinition.getClusterList();
+			for (int i = 0; i < clusterList.size(); i++) {
+				clusterIndexes.put(clusterList.get(i), i);
+			}
+			// previews which aren't rendered at all can be shown right away
+			for (PageCluster cluster : clusterList) {
+				ClusterImageData imageData = cluster.getImageData();
+				if (!imageData.isRenderable() || imageData.hasPreviewImage()) {
+					publish(new PreviewUpdate(cluster, imageData.getPreviewImage()));
+				}
+			}
+			renderWorker = new ClusterRenderWorker(session.getSourceFile(), clusterDefinition, pageImageStore);
+			renderWorker.setProgressListener((doneUnits, totalUnits) -> setProgress(doneUnits * 100 / totalUnits));
+			// users can start placing crops long before all previews are done
+			renderWorker.setPreviewListener((cluster, addedPages, totalPages) -> {
+				if (!cancelled && isPreviewToShow(addedPages, totalPages)) {
+					ClusterImageData imageData = cluster.getImageData();
+					publish(new PreviewUpdate(cluster, addedPages == totalPages
+							? imageData.getPreviewImage() : imageData.getPreviewSnapshot()));
+				}
+			});
+			if (cancelled)
+				return null;
+			renderWorker.start();
+			try {
+				renderWorker.getCompletion().join();
+			} catch (CancellationException e) {
+				// another file is being loaded, done() drops the result
+				return null;
+			}
 //			GraphicsEnvironment env = GraphicsEnvironment.getLocalGraphicsEnvironment();
 //			setMaximizedBounds(env.getMaximumWindowBounds());
 			setExtendedState( getExtendedState() | Frame.MAXIMIZED_BOTH );
@@ -51,6 +51,7 @@ import javax.swing.JPopupMenu;
 import javax.swing.SwingUtilities;
 
 import at.laborg.briss.model.CropFinder;
+import at.laborg.briss.model.CropRectangle;
 import at.laborg.briss.model.PageCluster;
 import at.laborg.briss.BrissGUI;
 
@@ -82,7 +83,9 @@ public class MergedPanel extends JPanel {
 	private final PageCluster cluster;
 
 	private final List<DrawableCropRect> crops = new ArrayList<>();
-	private final BufferedImage img;
+	private BufferedImage img;
+	// set once the user changed the crops of this panel
+	private boolean cropsEdited = false;
 
 	private enum ActionState {
 		NOTHING, DRAWING_NEW_CROP, RESIZING_HOTCORNER_UL, RESIZING_HOTCORNER_LR, MOVE_CROP
@@ -91,13 +94,21 @@ public class MergedPanel extends JPanel {
 	private final BrissGUI briss;
 
 	public MergedPanel(PageCluster cluster_, BrissGUI briss_, boolean autoCrop) {
+		this(cluster_, briss_, cluster_.getImageData().getPreviewImage());
+		if (autoCrop) {
+			addAutoCrop();
+		}
+	}
+
+	/**
+	 * Shows the given preview of the cluster, which may still be rendering.
+	 * See setPreviewImage.
+	 */
+	public MergedPanel(PageCluster cluster_, BrissGUI briss_, BufferedImage preview) {
 		super();
 		briss = briss_;
 		cluster = cluster_;
-		img = cluster.getImageData().getPreviewImage();
-		if (autoCrop) {
-			cluster.addCropRatio( CropFinder.calcCropRatioOfImg(img) );
-		}
+		img = preview;
 		setPreferredSize( new Dimension(img.getWidth(), img.getHeight()) );
 		setSize(          new Dimension(img.getWidth(), img.getHeight()) );
 		if (cluster.getImageData().isRenderable()) {
@@ -114,21 +125,65 @@ public class MergedPanel extends JPanel {
 		repaint();
 	}
 
+	public PageCluster getCluster() {
+		return cluster;
+	}
+
+	/**
+	 * Replaces the preview, e.g. by a more refined one of the same cluster.
+	 */
+	public void setPreviewImage(BufferedImage preview) {
+		boolean resized = preview.getWidth() != img.getWidth() || preview.getHeight() != img.getHeight();
+		img = preview;
+		if (resized) {
+			setPreferredSize( new Dimension(img.getWidth(), img.getHeight()) );
+			setSize(          new Dimension(img.getWidth(), img.getHeight()) );
+			xlatCropRatiosToCropRects();
+			revalidate();
+		}
+		repaint();
+	}
+
+	/**
+	 * Adds the crop the CropFinder detects in the current preview, unless
+	 * the cluster has it already (e.g. kept from the last clustering).
+	 */
+	public void addAutoCrop() {
+		CropRectangle auto = CropFinder.calcCropRatioOfImg(img);
+		if (cluster.getCropRatioList().contains(auto))
+			return;
+		cluster.addCropRatio(auto);
+		crops.add(xlatCropRatiosToCropRect(auto));
+		repaint();
+	}
+
+	/**
+	 * @return true if the user changed the crops shown by this panel
+	 */
+	public boolean hasEditedCrops() {
+		return cropsEdited;
+	}
+
 	private void xlatCropRatiosToCropRects() {
 		crops.clear();
-		for (Float[] ratios : cluster.getCropRatioList()) {
-			DrawableCropRect rect = new DrawableCropRect();
-			rect.x      = (int) (img.getWidth()  * ratios[0]);
-			rect.y      = (int) (img.getHeight() * ratios[3]);
-			rect.width  = (int) (img.getWidth()  * (1 - (ratios[0] + ratios[2])));
-			rect.height = (int) (img.getHeight() * (1 - (ratios[1] + ratios[3])));
-			// System.out.format( "ratio2rect=img(x=%d,y=%d), rect(x=%d,y=%d)", img.getWidth(), img.getHeight(), rect.width, rect.height );
-			crops.add(rect);
+		for (CropRectangle ratios : cluster.getCropRatioList()) {
+			crops.add(xlatCropRatiosToCropRect(ratios));
 		}
 		// System.out.println( "" );
 	}
 
+	private DrawableCropRect xlatCropRatiosToCropRect(CropRectangle ratios) {
+		DrawableCropRect rect = new DrawableCropRect();
+		rect.x      = (int) (img.getWidth()  * ratios.getxToLeft());
+		rect.y      = (int) (img.getHeight() * ratios.getyToTop());
+		rect.width  = (int) (img.getWidth()  * (1 - (ratios.getxToLeft()   + ratios.getxToRight())));
+		rect.height = (int) (img.getHeight() * (1 - (ratios.getyToBottom() + ratios.getyToTop())));
+		// System.out.format( "ratio2rect=img(x=%d,y=%d), rect(x=%d,y=%d)", img.getWidth(), img.getHeight(), rect.width, rect.height );
+		return rect;
+	}
+
 	private void xlatCropRectsToCropRatios(List<DrawableCropRect> tmpCrops) {
+		cropsEdited = true;
 		cluster.clearRatios();
 		for (Rectangle crop : tmpCrops) {
 			// System.out.format( "rect2ratio=(x=%d,y=%d)", img.getWidth(), img.getHeight() );
@@ -307,7 +362,7 @@ public class MergedPanel extends JPanel {
 	 * 
 	 * @return the cropped ratios or null if to small
 	 */
-	private static Float[] getCutRatiosForPdf(Rectangle crop, int imgWidth, int imgHeight) {
+	private static CropRectangle getCutRatiosForPdf(Rectangle crop, int imgWidth, int imgHeight) {
 		int x1 = crop.x;
 		int y1 = crop.y;
 		int x2 = x1 + crop.width;
@@ -318,12 +373,11 @@ public class MergedPanel extends JPanel {
 		x2 = Math.min( x2, imgWidth );
 		y2 = Math.min( y2, imgHeight );
 		// recalc
-		Float[] ratios = new Float[4];
-		ratios[0] =      (float)              x1  / imgWidth  ; // left
-		ratios[1] =      (float) (imgHeight - y2) / imgHeight ; // bottom
-		ratios[2] = 1 - ((float)              x2  / imgWidth) ; // right
-		ratios[3] = 1 - ((float) (imgHeight - y1) / imgHeight); // top
-		return ratios;
+		return new CropRectangle(
+			     (float)              x1  / imgWidth  ,  // left
+			     (float) (imgHeight - y2) / imgHeight ,  // bottom
+			1 - ((float)              x2  / imgWidth) ,  // right
+			1 - ((float) (imgHeight - y1) / imgHeight)); // top
 	}
 
 	private Font scaleFont(String text, Rectangle rect) {
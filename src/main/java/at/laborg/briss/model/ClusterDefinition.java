@@ -18,40 +18,81 @@
 package at.laborg.briss.model;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 public class ClusterDefinition {
 	/*
-	   a list of PageClusters
+	   a list of PageClusters, indexed by merge key (for merging new pages in
+	   constant time) and by page number (for looking up a page's cluster)
 	 */
 
 	private final List<PageCluster> clusters = new ArrayList<>();
+	// cluster positions are stored + 1, so that 0 means "no cluster"
+	private final Map<PageCluster.MergeKey, Integer> clusterIdxByMergeKey = new HashMap<>();
+	private int[] clusterIdxByPage = new int[0];
 
 	public final PageCluster getClusterContainingPage(final int pgNum) {
-		for (PageCluster cluster : clusters) {
-			if (cluster.getMemberPgNums().contains(pgNum))
-				return cluster;
-		}
-		return null;
+		if (pgNum < 0 || pgNum >= clusterIdxByPage.length || clusterIdxByPage[pgNum] == 0)
+			return null;
+		return clusters.get(clusterIdxByPage[pgNum] - 1);
 	}
 
 	public final List<PageCluster> getClusterList() {
 		return clusters;
 	}
 
-	public final List<List<Float[]>> getAllRatios () {
+	public final List<List<CropRectangle>> getAllRatios () {
 		return getClusterList().stream().map(cluster -> new ArrayList<>(cluster.getCropRatioList())).collect(Collectors.toList());
 	}
 
 	public final void addOrMergeCluster(final PageCluster tmpCluster) {
+		PageCluster.MergeKey mergeKey = tmpCluster.getMergeKey();
+		Integer clusterIdx = mergeKey != null ? clusterIdxByMergeKey.get(mergeKey) : null;
+		if (clusterIdx != null) {
+			clusters.get(clusterIdx - 1).incorporate(tmpCluster);
+		} else {
+			clusters.add(tmpCluster);
+			clusterIdx = clusters.size();
+			if (mergeKey != null) {
+				clusterIdxByMergeKey.put(mergeKey, clusterIdx);
+			}
+		}
+		for (Integer pgNum : tmpCluster.getMemberPgNums()) {
+			indexPage(pgNum, clusterIdx);
+		}
+	}
+
+	private void indexPage(final int pgNum, final int clusterIdx) {
+		if (pgNum >= clusterIdxByPage.length) {
+			clusterIdxByPage = Arrays.copyOf(clusterIdxByPage, Math.max(pgNum + 1, 2 * clusterIdxByPage.length));
+		}
+		clusterIdxByPage[pgNum] = clusterIdx;
+	}
+
+	/**
+	 * Reuses the previews of those clusters of an earlier clustering of the
+	 * same document which were merged from exactly the same pages (and hence
+	 * at the same scale), so that only clusters whose preview pages changed
+	 * need to be rendered again.
+	 */
+	public final void reuseImageData(final ClusterDefinition previous) {
+		Map<List<Integer>, PageCluster> previousByPreviewPgNums = new HashMap<>();
+		for (PageCluster cluster : previous.getClusterList()) {
+			if (cluster.getImageData().hasPreviewImage()) {
+				previousByPreviewPgNums.put(cluster.getPreviewPgNums(), cluster);
+			}
+		}
 		for (PageCluster cluster : clusters) {
-			if (cluster.isClusterNearlyEqual(tmpCluster)) {
-				cluster.incorporate(tmpCluster);
-				return;
+			PageCluster previousCluster = previousByPreviewPgNums.get(cluster.getPreviewPgNums());
+			if (previousCluster != null
+					&& previousCluster.getImageData().getPreviewScale() == cluster.getImageData().getPreviewScale()) {
+				cluster.adoptImageData(previousCluster);
 			}
 		}
-		clusters.add(tmpCluster);
 	}
 
 	public final void designatePreviewPages() {
@@ -61,7 +102,9 @@ public class ClusterDefinition {
 	public final int getNrOfPagesToRender() {
 		int size = 0;
 		for (PageCluster cluster : clusters) {
-			size += cluster.getPreviewPgNums().size();
+			if (!cluster.getImageData().hasPreviewImage()) {
+				size += cluster.getPreviewPgNums().size();
+			}
 		}
 		return size;
 	}
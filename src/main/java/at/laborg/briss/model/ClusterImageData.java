@@ -5,106 +5,378 @@ import java.awt.Font;
 import java.awt.Graphics2D;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
-import java.awt.image.WritableRaster;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.util.Arrays;
+import java.util.TreeMap;
 import java.util.stream.IntStream;
 
 public class ClusterImageData {
 
 	private static final int MAX_PAGE_HEIGHT = 900;
 	private static final int MAX_IMAGE_RENDER_SIZE = 2000 * 2000;
+	// rows handed to one parallel task; per-pixel tasks cost more than they compute
+	private static final int ROW_BLOCK_SIZE = 32;
+	// convergence is checked from this many pages on; the first check only
+	// takes the ink and crop the following pages are compared with
+	private static final int FIRST_CHECKED_PAGES = 3;
+	// a preview has converged once the pages added after the first check,
+	// at least this many and at least half of all its pages, neither inked
+	// new rows or columns of it nor moved an edge of the crop found in it by
+	// more than MAX_STABLE_CHANGE of the page's width or height, i.e. after
+	// 6 pages at the earliest
+	private static final int STABLE_PAGES_FOR_CONVERGENCE = 2;
+	private static final float MAX_STABLE_CHANGE = 0.0075f;
+	// preview pixels darker than this vary between the pages, i.e. have ink
+	private static final int INKED_GRAY_LEVEL = 239;
 
 	private final boolean renderable;
+	private final float previewScale;
 	private BufferedImage outputImage = null;
 	private int outputImageHeight = -1;
 	private int outputImageWidth = -1;
-	private short[][][] imgdata;
+	// streaming (Welford) accumulators, one entry per output pixel in
+	// row-major order: memory does not depend on the number of merged pages
+	private float[] mean;
+	private float[] m2;
 	private int imageCnt = 0;
-	private final int totalImages;
+	// pages added in preview order (see addImageToPreview(int, ...)): the
+	// index of the next page to merge, and the pages (null if skipped)
+	// which arrived before it, scaled to the preview
+	private int nextPreviewIdx = 0;
+	private final TreeMap<Integer, BufferedImage> waitingPages = new TreeMap<>();
+	// convergence state, only kept until the preview has converged
+	private BufferedImage snapshot;
+	private boolean[] inkedRows;
+	private boolean[] inkedCols;
+	// the crop when the current run of stable pages started
+	private CropRectangle runStartCrop;
+	private int stablePages = 0;
+	private volatile boolean converged = false;
 
-	public ClusterImageData(final int pageWidth, final int pageHeight, final int nrOfImages) {
-		this.renderable = pageWidth * pageHeight < MAX_IMAGE_RENDER_SIZE;
-		totalImages = nrOfImages;
+	public ClusterImageData(final int pageWidth, final int pageHeight) {
+		this.previewScale = calcPreviewScale(pageHeight);
+		this.renderable = isRenderable(pageWidth, pageHeight);
+	}
+
+	public static float calcPreviewScale(final int pageHeight) {
+		return pageHeight > MAX_PAGE_HEIGHT ? (float) MAX_PAGE_HEIGHT / pageHeight : 1f;
+	}
+
+	/**
+	 * @return false if a page of this size is too big (even at preview
+	 *         scale) to be rendered
+	 */
+	public static boolean isRenderable(final int pageWidth, final int pageHeight) {
+		float previewScale = calcPreviewScale(pageHeight);
+		return (pageWidth * previewScale) * (pageHeight * previewScale) < MAX_IMAGE_RENDER_SIZE;
 	}
 
 	public final boolean isRenderable() {
 		return renderable;
 	}
 
-	public final void addImageToPreview(final BufferedImage imageToAdd) {
+	/**
+	 * Returns the scale (relative to 72 dpi) at which pages have to be
+	 * rendered so that they fit the preview without being scaled down
+	 * afterwards.
+	 *
+	 * @return the render scale, at most 1
+	 */
+	public final float getPreviewScale() {
+		return previewScale;
+	}
+
+	/**
+	 * May be called concurrently by several render threads: only the (cheap)
+	 * accumulation is serialized, scaling runs in the caller's thread.
+	 *
+	 * @return the number of pages in the preview including this one
+	 */
+	public final int addImageToPreview(final BufferedImage imageToAdd) {
 		if (!renderable)
-			return;
-		if (outputImageHeight == -1) {
-			initializeOutputImage(imageToAdd);
+			return 0;
+		return add(toPreviewSize(imageToAdd));
+	}
+
+	/**
+	 * Adds the page with the given index in the cluster's preview pages.
+	 * Pages are merged in the order of their indexes, whichever order the
+	 * render threads finish them in: a page waits until all pages before it
+	 * were added (or skipped). Convergence is thus decided on the same pages
+	 * every time, and so are the preview and the crop found in it.
+	 *
+	 * @return the number of pages in the preview after merging this page
+	 *         and those waiting for it, 0 if it has to wait itself or the
+	 *         preview needs no more pages
+	 */
+	public final int addImageToPreview(final int previewIdx, final BufferedImage imageToAdd) {
+		if (!renderable || isConverged())
+			return 0;
+		return addInOrder(previewIdx, toPreviewSize(imageToAdd));
+	}
+
+	/**
+	 * Lets the pages after the one with the given index be merged without
+	 * it, e.g. because it couldn't be rendered.
+	 */
+	public final void skipPreviewPage(final int previewIdx) {
+		if (renderable) {
+			addInOrder(previewIdx, null);
 		}
-		add(scaleImage(imageToAdd, outputImageWidth, outputImageHeight));
+	}
+
+	private synchronized int addInOrder(final int previewIdx, final BufferedImage image) {
+		if (converged || outputImage != null)
+			return 0;
+		waitingPages.put(previewIdx, image);
+		if (previewIdx != nextPreviewIdx)
+			return 0;
+		while (!converged && waitingPages.containsKey(nextPreviewIdx)) {
+			BufferedImage page = waitingPages.remove(nextPreviewIdx++);
+			if (page != null) {
+				add(page);
+			}
+		}
+		if (converged) {
+			waitingPages.clear();
+		}
+		return imageCnt;
+	}
+
+	private BufferedImage toPreviewSize(final BufferedImage imageToAdd) {
+		synchronized (this) {
+			if (outputImageHeight == -1) {
+				initializeOutputImage(imageToAdd);
+			}
+		}
+		if (imageToAdd.getType() == BufferedImage.TYPE_BYTE_GRAY
+				&& imageToAdd.getWidth()  == outputImageWidth
+				&& imageToAdd.getHeight() == outputImageHeight) {
+			return imageToAdd;
+		}
+		return scaleImage(imageToAdd, outputImageWidth, outputImageHeight);
 	}
 
 	private void initializeOutputImage(final BufferedImage imageToAdd) {
 		outputImageHeight = Math.min( imageToAdd.getHeight(), MAX_PAGE_HEIGHT );
 		float scaleFactor = (float) outputImageHeight / imageToAdd.getHeight();
 		outputImageWidth = (int) (imageToAdd.getWidth() * scaleFactor);
-		imgdata = new short[outputImageWidth][outputImageHeight][totalImages];
+		mean = new float[outputImageWidth * outputImageHeight];
+		m2 = new float[outputImageWidth * outputImageHeight];
 	}
 
-	private void add(final BufferedImage image) {
-		int[] tmp = null; // redundant param to disambiguate getPixel() call
-		int height = image.getHeight();
-		int width = image.getWidth();
-		IntStream.range(0,width).parallel().forEach(i -> {
-			IntStream.range(0,height).parallel().forEach(j -> {
-				imgdata[i][j][imageCnt] = (short) image.getRaster().getPixel(i, j, tmp)[0];
-			});
+	private synchronized int add(final BufferedImage image) {
+		// pages still being rendered when the preview was finished
+		if (outputImage != null)
+			return imageCnt;
+		Raster raster = image.getRaster();
+		byte[] pixels = getGrayPixels(raster);
+		int firstRowOffset = pixels == null ? 0 : raster.getDataBuffer().getOffset();
+		int scanlineStride = pixels == null ? 0 : ((ComponentSampleModel) raster.getSampleModel()).getScanlineStride();
+		float invN = 1f / (imageCnt + 1);
+		forEachRowBlock((fromRow, toRow) -> {
+			// fallback for rasters which are not plain 8 bit gray
+			int[] samples = pixels == null ? new int[outputImageWidth] : null;
+			for (int j = fromRow; j < toRow; j++) {
+				int idx = j * outputImageWidth;
+				if (pixels != null) {
+					int src = firstRowOffset + j * scanlineStride;
+					for (int i = 0; i < outputImageWidth; i++) {
+						accumulate(idx + i, pixels[src + i] & 0xff, invN);
+					}
+				} else {
+					raster.getSamples(0, j, outputImageWidth, 1, 0, samples);
+					for (int i = 0; i < outputImageWidth; i++) {
+						accumulate(idx + i, samples[i], invN);
+					}
+				}
+			}
 		});
 		imageCnt++;
+		if (!converged && imageCnt >= FIRST_CHECKED_PAGES) {
+			checkConvergence();
+		}
+		return imageCnt;
+	}
+
+	/**
+	 * Compares the preview to the one before the last page was added. Ink
+	 * in new places, unlike the ever changing variance within the inked
+	 * area, is what can change the crop.
+	 */
+	private void checkConvergence() {
+		if (snapshot == null) {
+			snapshot = new BufferedImage(outputImageWidth, outputImageHeight, BufferedImage.TYPE_BYTE_GRAY);
+			inkedRows = new boolean[outputImageHeight];
+			inkedCols = new boolean[outputImageWidth];
+		}
+		byte[] pixels = ((DataBufferByte) snapshot.getRaster().getDataBuffer()).getData();
+		renderInto(pixels);
+		int newRows = 0;
+		int newCols = 0;
+		for (int j = 0, idx = 0; j < outputImageHeight; j++) {
+			for (int i = 0; i < outputImageWidth; i++, idx++) {
+				if ((pixels[idx] & 0xff) < INKED_GRAY_LEVEL) {
+					if (!inkedRows[j]) {
+						inkedRows[j] = true;
+						newRows++;
+					}
+					if (!inkedCols[i]) {
+						inkedCols[i] = true;
+						newCols++;
+					}
+				}
+			}
+		}
+		CropRectangle crop = CropFinder.calcCropRatioOfImg(snapshot);
+		// measured from the start of the run: the crop mustn't creep either
+		boolean stable = runStartCrop != null
+				&& newRows <= MAX_STABLE_CHANGE * outputImageHeight
+				&& newCols <= MAX_STABLE_CHANGE * outputImageWidth
+				&& getMaxChange(runStartCrop, crop) <= MAX_STABLE_CHANGE;
+		if (stable) {
+			stablePages++;
+		} else {
+			stablePages = 0;
+			runStartCrop = crop;
+		}
+		// the longer the sample, the less likely is each page to find new
+		// ink: only a run spanning half of it shows that there is none left
+		if (stablePages >= STABLE_PAGES_FOR_CONVERGENCE && 2 * stablePages >= imageCnt) {
+			converged = true;
+			releaseConvergenceState();
+		}
+	}
+
+	private void releaseConvergenceState() {
+		snapshot = null;
+		inkedRows = null;
+		inkedCols = null;
+	}
+
+	private static float getMaxChange(final CropRectangle a, final CropRectangle b) {
+		return Math.max(
+				Math.max(Math.abs(a.getxToLeft() - b.getxToLeft()), Math.abs(a.getyToBottom() - b.getyToBottom())),
+				Math.max(Math.abs(a.getxToRight() - b.getxToRight()), Math.abs(a.getyToTop() - b.getyToTop())));
 	}
 
-	public final BufferedImage getPreviewImage() {
+	/**
+	 * @return true if adding more pages would hardly change the preview,
+	 *         i.e. the remaining pages need not be rendered
+	 */
+	public final boolean isConverged() {
+		return converged;
+	}
+
+	private void accumulate(final int idx, final float value, final float invN) {
+		float delta = value - mean[idx];
+		mean[idx] += delta * invN;
+		m2[idx] += delta * (value - mean[idx]);
+	}
+
+	/**
+	 * Returns the backing array of a single band, one byte per pixel raster
+	 * or null if the raster has to be read via getSamples().
+	 */
+	static byte[] getGrayPixels(final Raster raster) {
+		if (raster.getNumBands() != 1
+				|| raster.getSampleModelTranslateX() != 0
+				|| raster.getSampleModelTranslateY() != 0
+				|| !(raster.getDataBuffer() instanceof DataBufferByte)
+				|| !(raster.getSampleModel() instanceof ComponentSampleModel)
+				|| ((ComponentSampleModel) raster.getSampleModel()).getPixelStride() != 1
+				|| raster.getSampleModel().getSampleSize(0) != 8) {
+			return null;
+		}
+		return ((DataBufferByte) raster.getDataBuffer()).getData();
+	}
+
+	private interface RowBlock {
+		void process(int fromRow, int toRow);
+	}
+
+	private void forEachRowBlock(final RowBlock rowBlock) {
+		int nrOfBlocks = (outputImageHeight + ROW_BLOCK_SIZE - 1) / ROW_BLOCK_SIZE;
+		IntStream.range(0, nrOfBlocks).parallel().forEach(block -> {
+			int fromRow = block * ROW_BLOCK_SIZE;
+			rowBlock.process(fromRow, Math.min(fromRow + ROW_BLOCK_SIZE, outputImageHeight));
+		});
+	}
+
+	/**
+	 * @return true if the preview was computed already, i.e. no more pages
+	 *         can be added
+	 */
+	public final synchronized boolean hasPreviewImage() {
+		return outputImage != null;
+	}
+
+	public final synchronized BufferedImage getPreviewImage() {
 		if (!renderable)
 			return getUnrenderableImage();
 		if (outputImage == null) {
+			// pages still waiting for one which never came (e.g. rendering
+			// was cancelled) are merged anyway
+			waitingPages.values().stream().filter(page -> page != null).forEach(this::add);
+			waitingPages.clear();
 			outputImage = renderOutputImage();
-			imgdata = null;
+			mean = null;
+			m2 = null;
+			releaseConvergenceState();
 		}
 		return outputImage;
 	}
 
+	/**
+	 * Renders the preview of the pages added so far without finishing it,
+	 * i.e. more pages can still be added. The snapshot has the size of the
+	 * final preview.
+	 *
+	 * @return the preview or null if no page was added yet
+	 */
+	public final synchronized BufferedImage getPreviewSnapshot() {
+		if (!renderable || outputImage != null)
+			return getPreviewImage();
+		if (imageCnt == 0)
+			return null;
+		return renderOutputImage();
+	}
+
 	private BufferedImage renderOutputImage() {
 		if ((outputImageWidth <=0) || (outputImageHeight <= 0)) {
 			// we have no image data - jpedal was probably not able to provide us with the data
 			// so we create an empty image
-			BufferedImage im = new BufferedImage(100, 100, BufferedImage.TYPE_BYTE_BINARY);
-			WritableRaster raster = im.getRaster();
-			IntStream.range(0,100).parallel().forEach(h -> {
-				IntStream.range(0,100).parallel().forEach(w -> {
-					raster.setSample(w,h,0,1);
-				});
-			});
+			BufferedImage im = new BufferedImage(100, 100, BufferedImage.TYPE_BYTE_GRAY);
+			Arrays.fill(((DataBufferByte) im.getRaster().getDataBuffer()).getData(), (byte) 255);
 			addImageToPreview(im);
 		}
 		BufferedImage outputImage = new BufferedImage(outputImageWidth, outputImageHeight, BufferedImage.TYPE_BYTE_GRAY);
-		WritableRaster raster = outputImage.getRaster().createCompatibleWritableRaster();
-		if (totalImages == 1) {
-			IntStream.range(0,outputImage.getWidth()).parallel().forEach(i -> {
-				IntStream.range(0,outputImage.getHeight()).parallel().forEach(j -> {
-					raster.setSample(i, j, 0, imgdata[i][j][0]);
-				});
-			});
-			outputImage.setData(raster);
-			return outputImage;
-		}
-		int[][] sdvalue = calculateSdOfImages(imgdata, imageCnt);
-		IntStream.range(0,outputImage.getWidth()).parallel().forEach(i -> {
-			IntStream.range(0,outputImage.getHeight()).parallel().forEach(j -> {
-				raster.setSample(i, j, 0, sdvalue[i][j]);
-			});
-		});
-		outputImage.setData(raster);
+		// a new TYPE_BYTE_GRAY image is backed by a single row-major array
+		renderInto(((DataBufferByte) outputImage.getRaster().getDataBuffer()).getData());
 		return outputImage;
 	}
 
+	private void renderInto(final byte[] pixels) {
+		int cnt = imageCnt;
+		forEachRowBlock((fromRow, toRow) -> {
+			for (int idx = fromRow * outputImageWidth; idx < toRow * outputImageWidth; idx++) {
+				int value = cnt == 1 ? (int) mean[idx] : 255 - (int) Math.sqrt(m2[idx] / cnt);
+				pixels[idx] = (byte) value;
+			}
+		});
+	}
+
 	private static BufferedImage scaleImage(final BufferedImage bsrc, final int width, final int height) {
 		BufferedImage bdest = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
 		Graphics2D g = bdest.createGraphics();
+		if (bsrc.getWidth() == width && bsrc.getHeight() == height) {
+			// rendered at preview size already: only convert to gray
+			g.drawImage(bsrc, 0, 0, null);
+			g.dispose();
+			return bdest;
+		}
 		AffineTransform at = AffineTransform.getScaleInstance(
 				(double) bdest.getWidth()  / bsrc.getWidth()  ,
 				(double) bdest.getHeight() / bsrc.getHeight());
@@ -129,39 +401,4 @@ public class ClusterImageData {
 		g2d.dispose();
 		return bimage;
 	}
-
-	private static int[][] calculateSdOfImages(final short[][][] imgdata, final int imageCnt) {
-		int width = imgdata.length;
-		int height = imgdata[0].length;
-		int[][] sum = new int[width][height];
-		int[][] mean = new int[width][height];
-		int[][] sd = new int[width][height];
-		IntStream.range(0,width).parallel().forEach(i -> {
-			IntStream.range(0,height).parallel().forEach(j -> {
-				IntStream.range(0,imageCnt).forEach(k -> {
-					sum[i][j] += imgdata[i][j][k];
-				});
-			});
-		});
-		IntStream.range(0,width).parallel().forEach(i -> {
-			IntStream.range(0,height).parallel().forEach(j -> {
-				mean[i][j] = sum[i][j] / imageCnt;
-			});
-		});
-		IntStream.range(0,width).parallel().forEach(i -> {
-			IntStream.range(0,height).parallel().forEach(j -> {
-				sum[i][j] = 0;
-				IntStream.range(0,imageCnt).forEach(k -> {
-					sum[i][j] += (imgdata[i][j][k] - mean[i][j])
-							   * (imgdata[i][j][k] - mean[i][j]);
-				});
-			});
-		});
-		IntStream.range(0,width).parallel().forEach(i -> {
-			IntStream.range(0,height).parallel().forEach(j -> {
-				sd[i][j] = 255 - (int) Math.sqrt(sum[i][j] / imageCnt);
-			});
-		});
-		return sd;
-	}
 }
@@ -20,22 +20,36 @@ package at.laborg.briss.model;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 public final class CropDefinition {
+	/*
+	   the crops of all pages: rectanglesByPage[pgNum] is the position of the
+	   page's rectangles in rectangleLists, or -1 if the page isn't cropped.
+	   All pages of a cluster share one unmodifiable list; a page with crops
+	   of its own (see overrideRectanglesForPage) refers to a list of its own.
+	 */
+
+	/**
+	 * The compression level which copies the streams to the destination as
+	 * they are.
+	 */
+	public static final int KEEP_COMPRESSION_LEVEL = -1;
+	public static final int BEST_COMPRESSION_LEVEL = 9;
 
 	private final File sourceFile;
 	private final File destinationFile;
-	private final Map<Integer, List<Float[]>> pageToCropRectangles;
+	private final List<List<CropRectangle>> rectangleLists = new ArrayList<>();
+	private int[] rectanglesByPage = new int[0];
+	private boolean pruneContent;
+	private boolean fullCompression;
+	private int compressionLevel = KEEP_COMPRESSION_LEVEL;
 
-	private CropDefinition(final File source, final File destination,
-			final HashMap<Integer, List<Float[]>> pageToCropRectangles) {
+	private CropDefinition(final File source, final File destination) {
 		this.sourceFile = source;
 		this.destinationFile = destination;
-		this.pageToCropRectangles = pageToCropRectangles;
 	}
 
 	public static CropDefinition createCropDefinition(final File source,
@@ -46,18 +60,48 @@ public final class CropDefinition {
 		if (!source.exists()) {
 			throw new IllegalArgumentException("Source(" + source.getAbsolutePath() + ") file doesn't exist");
 		}
-		HashMap<Integer, List<Float[]>> pagesToCrops = new HashMap<>();
+		CropDefinition cropDefinition = new CropDefinition(source, destination);
 		for (PageCluster cluster : clusters.getClusterList()) {
-			for (Integer pageNumber : cluster.getMemberPgNums()) {
-				List<Float[]> cropRectangles = pagesToCrops.get(pageNumber);
-				if (cropRectangles == null) {
-					cropRectangles = new ArrayList<>();
-				}
-				cropRectangles.addAll(cluster.getCropRatioList());
-				pagesToCrops.put(pageNumber, cropRectangles);
-			}
+			int listIdx = cropDefinition.addRectangleList(cluster.getCropRatioList());
+			cluster.getMemberPgNums().stream().forEach(pgNum -> cropDefinition.assignRectangleList(pgNum, listIdx));
+		}
+		return cropDefinition;
+	}
+
+	/**
+	 * Replaces the crops of a single page, e.g. with ones found for this page
+	 * alone instead of for its cluster.
+	 */
+	public void overrideRectanglesForPage(final int page, final List<CropRectangle> rectangles) {
+		ensureCapacity(page);
+		rectanglesByPage[page] = -1;
+		assignRectangleList(page, addRectangleList(rectangles));
+	}
+
+	private int addRectangleList(final List<CropRectangle> rectangles) {
+		rectangleLists.add(Collections.unmodifiableList(new ArrayList<>(rectangles)));
+		return rectangleLists.size() - 1;
+	}
+
+	private void assignRectangleList(final int page, final int listIdx) {
+		ensureCapacity(page);
+		int assignedIdx = rectanglesByPage[page];
+		if (assignedIdx >= 0) {
+			// a page in more than one cluster is cropped to the rectangles of all of them
+			List<CropRectangle> combined = new ArrayList<>(rectangleLists.get(assignedIdx));
+			combined.addAll(rectangleLists.get(listIdx));
+			rectanglesByPage[page] = addRectangleList(combined);
+		} else {
+			rectanglesByPage[page] = listIdx;
+		}
+	}
+
+	private void ensureCapacity(final int page) {
+		if (page >= rectanglesByPage.length) {
+			int oldLength = rectanglesByPage.length;
+			rectanglesByPage = Arrays.copyOf(rectanglesByPage, Math.max(page + 1, 2 * oldLength));
+			Arrays.fill(rectanglesByPage, oldLength, rectanglesByPage.length, -1);
 		}
-		return new CropDefinition(source, destination, pagesToCrops);
 	}
 
 	public File getSourceFile() {
@@ -68,11 +112,63 @@ public final class CropDefinition {
 		return destinationFile;
 	}
 
-	public List<Float[]> getRectanglesForPage(final Integer page) {
-		if (pageToCropRectangles.containsKey(page))
-			return pageToCropRectangles.get(page);
-		else
+	/**
+	 * @return true if the images and forms the crops hide entirely are
+	 *         removed from the destination instead of kept hidden
+	 */
+	public boolean isPruneContent() {
+		return pruneContent;
+	}
+
+	public void setPruneContent(final boolean pruneContent) {
+		this.pruneContent = pruneContent;
+	}
+
+	/**
+	 * @return true if the destination stores its objects in compressed
+	 *         object streams and its cross-reference table as a stream
+	 *         (PDF 1.5)
+	 */
+	public boolean isFullCompression() {
+		return fullCompression;
+	}
+
+	public void setFullCompression(final boolean fullCompression) {
+		this.fullCompression = fullCompression;
+	}
+
+	/**
+	 * @return the level from 0 (none) to 9 (best) the streams are
+	 *         recompressed with, or KEEP_COMPRESSION_LEVEL
+	 */
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	public void setCompressionLevel(final int compressionLevel) {
+		if (compressionLevel != KEEP_COMPRESSION_LEVEL
+				&& (compressionLevel < 0 || compressionLevel > BEST_COMPRESSION_LEVEL)) {
+			throw new IllegalArgumentException("Compression level must be 0 to " + BEST_COMPRESSION_LEVEL);
+		}
+		this.compressionLevel = compressionLevel;
+	}
+
+	/**
+	 * @return true if any page is cropped to more than one rectangle, i.e.
+	 *         the destination has more pages than the source
+	 */
+	public boolean hasSplitPages() {
+		return Arrays.stream(rectanglesByPage).anyMatch(listIdx -> listIdx >= 0 && rectangleLists.get(listIdx).size() > 1);
+	}
+
+	/**
+	 * @return the (unmodifiable) rectangles of the page, empty if the page
+	 *         isn't cropped
+	 */
+	public List<CropRectangle> getRectanglesForPage(final int page) {
+		if (page < 0 || page >= rectanglesByPage.length || rectanglesByPage[page] < 0)
 			return Collections.emptyList();
+		return rectangleLists.get(rectanglesByPage[page]);
 	}
 
 }
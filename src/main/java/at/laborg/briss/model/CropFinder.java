@@ -1,30 +1,30 @@
 package at.laborg.briss.model;
 
 import java.awt.image.BufferedImage;
-import java.awt.image.WritableRaster;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.Raster;
 
 public final class CropFinder {
 	private CropFinder() {}
 
-	// definition: CropRatio (singular noun): a Float [4] containing ratios that govern cropping
+	// definition: CropRatio (singular noun): a CropRectangle containing ratios that govern cropping
 
 	private static final double RATIO_LOOK_AHEAD_SATISFY = 0.85;
 	private static final int LOOK_AHEAD_PIXEL_NR = 30;
 	private static final int SD_CALC_SIZE_NR = 5;
 	private static final float SD_THRESHOLD_TO_BE_COUNTED = 0.2f;
 
-	private static final int X_AXIS = 0;
-	private static final int Y_AXIS = 1;
 	private static final int ORIENTATION_LEFT = 0;
 	private static final int ORIENTATION_TOP = 1;
 	private static final int ORIENTATION_RIGHT = 2;
 	private static final int ORIENTATION_BOTTOM = 3;
 
-	public static Float[] calcCropRatioOfImg(final BufferedImage image) {
-		WritableRaster raster = image.getRaster();
+	public static CropRectangle calcCropRatioOfImg(final BufferedImage image) {
+		Raster raster = image.getRaster();
 
-		double[] sumX = sumFrom2dTo1d(raster, X_AXIS);
-		double[] sumY = sumFrom2dTo1d(raster, Y_AXIS);
+		double[] sumX = new double[raster.getWidth()];
+		double[] sumY = new double[raster.getHeight()];
+		sumFrom2dTo1d(raster, sumX, sumY);
 
 		double[] derivationX = createDerivation(sumX);
 		double[] derivationY = createDerivation(sumY);
@@ -37,39 +37,50 @@ public final class CropFinder {
 		int positionXRight  = findPosition(sdOfDerivationX, ORIENTATION_RIGHT  );
 		int positionYBottom = findPosition(sdOfDerivationY, ORIENTATION_BOTTOM );
 
-		Float[] result = new Float[4];
-		result[0] = (                     positionXLeft    / (float) image.getWidth() );
-		result[1] = ((image.getHeight() - positionYBottom) / (float) image.getHeight());
-		result[2] = ((image.getWidth()  - positionXRight ) / (float) image.getWidth() );
-		result[3] = (                     positionYTop     / (float) image.getHeight());
-		return result;
+		return new CropRectangle(
+				(                     positionXLeft    / (float) image.getWidth() ),
+				((image.getHeight() - positionYBottom) / (float) image.getHeight()),
+				((image.getWidth()  - positionXRight ) / (float) image.getWidth() ),
+				(                     positionYTop     / (float) image.getHeight()));
 	}
 
-	private static double[] sumFrom2dTo1d(final WritableRaster raster, final int axis) {
-		if (axis == X_AXIS) {
-			double[] values = new double[raster.getWidth()];
-			for (int i = 0; i < raster.getWidth(); i++) {
-				int[] tmp = null; // redundant param to disambiguate getPixels() call
-				tmp = raster.getPixels(i, 0, 1, raster.getHeight(), tmp);
-				for (int element : tmp) {
-					values[i] += element;
+	/**
+	 * Averages the raster's columns into sumX and its rows into sumY, in a
+	 * single pass over the rows.
+	 */
+	private static void sumFrom2dTo1d(final Raster raster, final double[] sumX, final double[] sumY) {
+		int width = raster.getWidth();
+		int height = raster.getHeight();
+		int bands = raster.getNumBands();
+		byte[] pixels = ClusterImageData.getGrayPixels(raster);
+		int firstRowOffset = pixels == null ? 0 : raster.getDataBuffer().getOffset();
+		int scanlineStride = pixels == null ? 0 : ((ComponentSampleModel) raster.getSampleModel()).getScanlineStride();
+		// fallback for rasters which are not plain 8 bit gray
+		int[] samples = pixels == null ? new int[width * bands] : null;
+		for (int y = 0; y < height; y++) {
+			long rowSum = 0;
+			if (pixels != null) {
+				int src = firstRowOffset + y * scanlineStride;
+				for (int x = 0; x < width; x++) {
+					int value = pixels[src + x] & 0xff;
+					sumX[x] += value;
+					rowSum += value;
 				}
-				values[i] /= raster.getHeight();
-			}
-			return values;
-		} else if (axis == Y_AXIS) {
-			double[] values = new double[raster.getHeight()];
-			for (int i = 0; i < raster.getHeight(); i++) {
-				int[] tmp = null; // redundant param to disambiguate getPixels() call
-				tmp = raster.getPixels(0, i, raster.getWidth(), 1, tmp);
-				for (int element : tmp) {
-					values[i] += element;
+			} else {
+				raster.getPixels(0, y, width, 1, samples);
+				for (int x = 0; x < width; x++) {
+					for (int b = 0; b < bands; b++) {
+						int value = samples[x * bands + b];
+						sumX[x] += value;
+						rowSum += value;
+					}
 				}
-				values[i] /= raster.getWidth();
 			}
-			return values;
+			sumY[y] = rowSum / (double) width;
+		}
+		for (int x = 0; x < width; x++) {
+			sumX[x] /= height;
 		}
-		return null;
 	}
 
 	private static double[] createDerivation(final double[] values) {
@@ -80,63 +91,44 @@ public final class CropFinder {
 		return derivedValues;
 	}
 
-	private static int findPosition(final double[] sds, final int orientationLeft) {
-		int position = 0;
-		switch (orientationLeft) {
-		case ORIENTATION_TOP:
-			for (int i = 0; i < sds.length - LOOK_AHEAD_PIXEL_NR; i++) {
-				int cnt = diffCounter(sds, i, i + LOOK_AHEAD_PIXEL_NR);
-				if (cnt > RATIO_LOOK_AHEAD_SATISFY * LOOK_AHEAD_PIXEL_NR) {
-					position = i;
-					break;
-				}
+	/**
+	 * Finds the first position (from the start for left/top, from the end for
+	 * right/bottom) whose look-ahead window has enough values above the
+	 * threshold.  The number of those values is kept up to date while the
+	 * window slides, so each position costs O(1).
+	 */
+	private static int findPosition(final double[] sds, final int orientation) {
+		int n = sds.length;
+		if (n <= LOOK_AHEAD_PIXEL_NR)
+			return 0;
+		if (orientation == ORIENTATION_LEFT || orientation == ORIENTATION_TOP) {
+			// window of position i: [i, i + LOOK_AHEAD_PIXEL_NR)
+			int cnt = diffCounter(sds, 0, LOOK_AHEAD_PIXEL_NR);
+			for (int i = 0; i < n - LOOK_AHEAD_PIXEL_NR; i++) {
+				if (cnt > RATIO_LOOK_AHEAD_SATISFY * LOOK_AHEAD_PIXEL_NR)
+					return i;
+				cnt += diffCounter(sds, i + LOOK_AHEAD_PIXEL_NR, i + LOOK_AHEAD_PIXEL_NR + 1)
+						- diffCounter(sds, i, i + 1);
 			}
-			break;
-		case ORIENTATION_LEFT:
-			for (int i = 0; i < sds.length - LOOK_AHEAD_PIXEL_NR; i++) {
-				int cnt = diffCounter(sds, i, i + LOOK_AHEAD_PIXEL_NR);
-				if (cnt > RATIO_LOOK_AHEAD_SATISFY * LOOK_AHEAD_PIXEL_NR) {
-					position = i;
-					break;
+		} else {
+			// window of position i: [i - LOOK_AHEAD_PIXEL_NR, i)
+			int cnt = diffCounter(sds, n - 1 - LOOK_AHEAD_PIXEL_NR, n - 1);
+			for (int i = n - 1; i >= 0 + LOOK_AHEAD_PIXEL_NR; i--) {
+				if (cnt > RATIO_LOOK_AHEAD_SATISFY * LOOK_AHEAD_PIXEL_NR)
+					return i;
+				if (i - 1 - LOOK_AHEAD_PIXEL_NR >= 0) {
+					cnt += diffCounter(sds, i - 1 - LOOK_AHEAD_PIXEL_NR, i - LOOK_AHEAD_PIXEL_NR)
+							- diffCounter(sds, i - 1, i);
 				}
 			}
-			break;
-		case ORIENTATION_BOTTOM:
-			for (int i = sds.length - 1; i >= 0 + LOOK_AHEAD_PIXEL_NR; i--) {
-				int cnt = diffCounter(sds, i - LOOK_AHEAD_PIXEL_NR, i);
-				if (cnt > RATIO_LOOK_AHEAD_SATISFY * LOOK_AHEAD_PIXEL_NR) {
-					position = i;
-					break;
-				}
-			}
-			break;
-		case ORIENTATION_RIGHT:
-			for (int i = sds.length - 1; i >= 0 + LOOK_AHEAD_PIXEL_NR; i--) {
-				int cnt = diffCounter(sds, i - LOOK_AHEAD_PIXEL_NR, i);
-				if (cnt > RATIO_LOOK_AHEAD_SATISFY * LOOK_AHEAD_PIXEL_NR) {
-					position = i;
-					break;
-				}
-			}
-			break;
-		default:
-			break;
 		}
-		return position;
+		return 0;
 	}
 
 	private static double[] createSdOfDerivation(final double[] diffOut) {
 		double[] sds = new double[diffOut.length];
 		for (int i = 0; i < diffOut.length; i++) {
-			double[] tmp = new double[SD_CALC_SIZE_NR];
-			for (int j = 0; (j < tmp.length); j++) {
-				if (i + j < diffOut.length) {
-					tmp[j] = diffOut[i + j];
-				} else {
-					tmp[j] = 0;
-				}
-			}
-			sds[i] = sd(tmp);
+			sds[i] = sd(diffOut, i);
 		}
 		return sds;
 	}
@@ -151,17 +143,27 @@ public final class CropFinder {
 		return cnt;
 	}
 
-	private static double sd(final double[] values) {
+	/**
+	 * Standard deviation of the SD_CALC_SIZE_NR values from start on, values
+	 * past the end count as 0.  The window is read in place instead of being
+	 * copied.
+	 */
+	private static double sd(final double[] values, final int start) {
 		double sum = 0;
-		for (double value : values) {
-			sum += value;
+		for (int j = 0; j < SD_CALC_SIZE_NR; j++) {
+			sum += valueOrZero(values, start + j);
 		}
-		double mean = sum / values.length;
+		double mean = sum / SD_CALC_SIZE_NR;
 		double sd = 0;
-		for (double value : values) {
+		for (int j = 0; j < SD_CALC_SIZE_NR; j++) {
+			double value = valueOrZero(values, start + j);
 			sd += (value - mean) * (value - mean);
 		}
-		sd = Math.sqrt(sd / values.length);
+		sd = Math.sqrt(sd / SD_CALC_SIZE_NR);
 		return sd;
 	}
+
+	private static double valueOrZero(final double[] values, final int idx) {
+		return idx < values.length ? values[idx] : 0;
+	}
 }
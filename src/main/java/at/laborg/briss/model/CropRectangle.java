@@ -1,15 +1,14 @@
 package at.laborg.briss.model;
 
-class CropRectangle {
-	/**
-	 * returns the ratio to crop the page x1,y1,x2,y2, origin = bottom left x1:
-	 * from left edge to left edge of crop rectange y1: from lower edge to lower
-	 * edge of crop rectange x2: from right edge to right edge of crop rectange
-	 * y2: from top edge to top edge of crop rectange
-	 * 
-	 * @return
-	 */
-	private float xToLeft, yToBottom, xToRight, yToTop;
+/*
+ A crop, given as the ratios of the page's width/height to cut away at each
+ edge (origin = bottom left): xToLeft from the left edge, yToBottom from the
+ lower edge, xToRight from the right edge and yToTop from the top edge.
+ Immutable; two crops with equal ratios are equal.
+ */
+public final class CropRectangle {
+
+	private final float xToLeft, yToBottom, xToRight, yToTop;
 
 	public CropRectangle(final float xToLeft, final float yToBottom, final float xToRight,
 			final float yToTop) {
@@ -20,36 +19,43 @@ class CropRectangle {
 		this.yToTop = yToTop;
 	}
 
-	public final float getxToLeft() {
+	public float getxToLeft() {
 		return xToLeft;
 	}
 
-	public final void setxToLeft(final float xToLeft) {
-		this.xToLeft = xToLeft;
-	}
-
-	public final float getyToBottom() {
+	public float getyToBottom() {
 		return yToBottom;
 	}
 
-	public final void setyToBottom(final float yToBottom) {
-		this.yToBottom = yToBottom;
-	}
-
-	public final float getxToRight() {
+	public float getxToRight() {
 		return xToRight;
 	}
 
-	public final void setxToRight(final float xToRight) {
-		this.xToRight = xToRight;
+	public float getyToTop() {
+		return yToTop;
 	}
 
-	public final float getyToTop() {
-		return yToTop;
+	@Override
+	public boolean equals(final Object obj) {
+		if (!(obj instanceof CropRectangle))
+			return false;
+		CropRectangle other = (CropRectangle) obj;
+		return Float.compare(xToLeft, other.xToLeft) == 0
+		&&	Float.compare(yToBottom, other.yToBottom) == 0
+		&&	Float.compare(xToRight, other.xToRight) == 0
+		&&	Float.compare(yToTop, other.yToTop) == 0;
 	}
 
-	public final void setyToTop(final float yToTop) {
-		this.yToTop = yToTop;
+	@Override
+	public int hashCode() {
+		int hash = Float.floatToIntBits(xToLeft);
+		hash = 31 * hash + Float.floatToIntBits(yToBottom);
+		hash = 31 * hash + Float.floatToIntBits(xToRight);
+		return 31 * hash + Float.floatToIntBits(yToTop);
 	}
 
+	@Override
+	public String toString() {
+		return xToLeft + "/" + yToBottom + "/" + xToRight + "/" + yToTop;
+	}
 }
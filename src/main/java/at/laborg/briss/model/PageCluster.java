@@ -30,21 +30,27 @@ import java.util.List;
  */
 public class PageCluster implements Comparable<PageCluster> {
 
+	public static final String MAX_PREVIEW_PAGES_PROPERTY = "briss.maxPreviewPages";
+
 	private static final int MERGE_VARIABILITY = 20;
-	private static final int MAX_MERGE_PAGES = 15;
+	// rendering usually stops much earlier, see ClusterImageData.isConverged
+	private static final int DEFAULT_MAX_MERGE_PAGES = 30;
 
-	private final List<Integer> memberPgNums;
+	private final PageSet memberPgNums;
 	// Every memberPgNum shares the same <roundedPgWidth,roundedPgHeight> attribute.
 	// The <pageWidth,PageHeight> attribute of each memberPgNum may not be identical to those of its mates.
 	private final int roundedPgWidth;
 	private final int roundedPgHeight;
+	// largest <pageWidth,pageHeight> of all memberPgNums, i.e. what a preview has to fit
+	private int maxPgWidth;
+	private int maxPgHeight;
 
 	private static int roundPgDim( int dim ) {
 		int tmp = dim / MERGE_VARIABILITY;
 		return tmp * MERGE_VARIABILITY;
 	}
 
-	private final List<Float[]> cropRatiosList = new ArrayList<>();
+	private final List<CropRectangle> cropRatiosList = new ArrayList<>();
 	private boolean excluded = false;
 	private ClusterImageData imageData;
 	private final boolean evenPage;
@@ -54,11 +60,12 @@ public class PageCluster implements Comparable<PageCluster> {
 		super();
 		this.roundedPgWidth  = roundPgDim( pageWidth  );
 		this.roundedPgHeight = roundPgDim( pageHeight );
+		this.maxPgWidth  = pageWidth;
+		this.maxPgHeight = pageHeight;
 		this.evenPage = isEvenPage;
 		this.excluded = excluded;
 		this.previewPgNums = new ArrayList<>();
-		this.memberPgNums = new ArrayList<>();
-		this.memberPgNums.add(pageNumber);
+		this.memberPgNums = new PageSet(pageNumber);
 	}
 
 	public String createToolTipText() {
@@ -82,11 +89,19 @@ public class PageCluster implements Comparable<PageCluster> {
 
 	public final ClusterImageData getImageData() {
 		if (imageData == null) {
-			imageData = new ClusterImageData(roundedPgWidth, roundedPgHeight, previewPgNums.size());
+			imageData = new ClusterImageData(maxPgWidth, maxPgHeight);
 		}
 		return imageData;
 	}
 
+	/**
+	 * Takes over the (finished) preview of a cluster of an earlier clustering
+	 * which was merged from the same pages.
+	 */
+	public final void adoptImageData(final PageCluster other) {
+		imageData = other.getImageData();
+	}
+
 	/**
 	 * Returns the ratio to crop the page.
 	 * 
@@ -97,11 +112,11 @@ public class PageCluster implements Comparable<PageCluster> {
 	 * 
 	 * @return
 	 */
-	public final List<Float[]> getCropRatioList() {
+	public final List<CropRectangle> getCropRatioList() {
 		return cropRatiosList;
 	}
 
-	public final void setRatiosList(final List<Float[]> ratiosList) {
+	public final void setRatiosList(final List<CropRectangle> ratiosList) {
 		clearRatios();
 		ratiosList.forEach(this::addCropRatio);
 	}
@@ -110,7 +125,7 @@ public class PageCluster implements Comparable<PageCluster> {
 		cropRatiosList.clear();
 	}
 
-	public final void addCropRatio(final Float[] ratios) {
+	public final void addCropRatio(final CropRectangle ratios) {
 		// check if already in
 		if (!cropRatiosList.contains(ratios)) {
 			cropRatiosList.add(ratios);
@@ -126,8 +141,20 @@ public class PageCluster implements Comparable<PageCluster> {
 		;
 	}
 
+	/**
+	 * Two clusters are nearly equal (see isClusterNearlyEqual) if and only if
+	 * their merge keys are equal; excluded clusters never merge and have no key.
+	 *
+	 * @return the key or null if this cluster is excluded
+	 */
+	final MergeKey getMergeKey() {
+		return excluded ? null : new MergeKey(evenPage, roundedPgWidth, roundedPgHeight);
+	}
+
 	public final void incorporate(final PageCluster other) {
 		memberPgNums.addAll(other.getMemberPgNums());
+		maxPgWidth  = Math.max(maxPgWidth , other.maxPgWidth );
+		maxPgHeight = Math.max(maxPgHeight, other.maxPgHeight);
 	}
 
 	private boolean isEvenPages() {
@@ -135,22 +162,43 @@ public class PageCluster implements Comparable<PageCluster> {
 	}
 
 	private List<Integer> previewPgNums;
+	/**
+	 * Chooses the pages merged into the preview, at most
+	 * MAX_PREVIEW_PAGES_PROPERTY of them evenly spread across the cluster.
+	 * They are ordered such that every prefix is spread across the cluster,
+	 * too (first, middle, quarters, eighths, ...): rendering can stop after
+	 * any of them once the preview has converged.
+	 */
 	public final void designatePreviewPages() {
-		if (memberPgNums.size() < MAX_MERGE_PAGES) {
+		int[] pgNums = memberPgNums.toArray();
+		int maxMergePages = Math.max(1, Integer.getInteger(MAX_PREVIEW_PAGES_PROPERTY, DEFAULT_MAX_MERGE_PAGES));
+		int[] candidates;
+		if (pgNums.length <= maxMergePages) {
 			// use all pages
-			previewPgNums = memberPgNums;
+			candidates = pgNums;
 		} else {
 			// use an equal distribution
-			float stepWidth = (float) memberPgNums.size() / MAX_MERGE_PAGES;
-			float totalStepped = 0;
-			for (int i = 0; i < MAX_MERGE_PAGES; i++) {
-				previewPgNums.add(memberPgNums.get(Double.valueOf(Math.floor(totalStepped)).intValue()));
-				totalStepped += stepWidth;
+			candidates = new int[maxMergePages];
+			float stepWidth = (float) pgNums.length / maxMergePages;
+			for (int i = 0; i < maxMergePages; i++) {
+				candidates[i] = pgNums[(int) (i * stepWidth)];
+			}
+		}
+		// van der Corput order: the bit reversed indices i / 2^bits cover
+		// [0, 1) ever more densely, so do the candidates they pick
+		int bits = 32 - Integer.numberOfLeadingZeros(candidates.length - 1);
+		boolean[] picked = new boolean[candidates.length];
+		for (int i = 0; i < (1 << bits); i++) {
+			long reversed = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+			int idx = (int) ((reversed * candidates.length) >> bits);
+			if (!picked[idx]) {
+				picked[idx] = true;
+				previewPgNums.add(candidates[idx]);
 			}
 		}
 	}
 
-	public final List<Integer> getMemberPgNums() {
+	public final PageSet getMemberPgNums() {
 		return memberPgNums;
 	}
 
@@ -159,14 +207,37 @@ public class PageCluster implements Comparable<PageCluster> {
 	}
 
 	private int getMinPage() {
-		int small = Integer.MAX_VALUE;
-		for (Integer tmp : memberPgNums) {
-			small = Math.min(small, tmp);
-		}
-		return small;
+		return memberPgNums.first();
 	}
 
 	public final int compareTo(final PageCluster that) {
 		return this.getMinPage() - that.getMinPage();
 	}
+
+	static final class MergeKey {
+		private final boolean evenPage;
+		private final int roundedPgWidth;
+		private final int roundedPgHeight;
+
+		private MergeKey(final boolean evenPage, final int roundedPgWidth, final int roundedPgHeight) {
+			this.evenPage = evenPage;
+			this.roundedPgWidth = roundedPgWidth;
+			this.roundedPgHeight = roundedPgHeight;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof MergeKey))
+				return false;
+			MergeKey other = (MergeKey) obj;
+			return evenPage == other.evenPage
+			&&	roundedPgWidth == other.roundedPgWidth
+			&&	roundedPgHeight == other.roundedPgHeight;
+		}
+
+		@Override
+		public int hashCode() {
+			return (31 * roundedPgWidth + roundedPgHeight) * 2 + (evenPage ? 1 : 0);
+		}
+	}
 }
@@ -1,15 +1,13 @@
 package at.laborg.briss.model;
 
-import java.util.Set;
-
 public class PageExcludes {
-	private final Set<Integer> excludedPageSet;
+	private final PageSet excludedPageSet;
 
-	public PageExcludes(final Set<Integer> excludedPageSet) {
+	public PageExcludes(final PageSet excludedPageSet) {
 		this.excludedPageSet = excludedPageSet;
 	}
 
-	public final Set<Integer> getExcludedPageSet() {
+	public final PageSet getExcludedPageSet() {
 		return excludedPageSet;
 	}
 
@@ -0,0 +1,135 @@
+package at.laborg.briss.model;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.stream.IntStream;
+
+/*
+ A set of page numbers, stored as a bit per page: membership checks are
+ O(1), ranges are added without enumerating them and a set of all pages of
+ a huge document takes a few kilobytes instead of a boxed Integer per page.
+ The bits start at the (64-aligned) smallest page, so that a set holding a
+ single late page of a huge document is small as well.
+ Iteration is in ascending page order.
+ */
+public final class PageSet implements Iterable<Integer> {
+
+	private BitSet bits = new BitSet();
+	// page number of bit 0, a multiple of 64
+	private int offset = -1;
+	private int size = 0;
+
+	public PageSet() {
+	}
+
+	public PageSet(final int pgNum) {
+		add(pgNum);
+	}
+
+	public void add(final int pgNum) {
+		ensureOffset(pgNum);
+		if (!bits.get(pgNum - offset)) {
+			bits.set(pgNum - offset);
+			size++;
+		}
+	}
+
+	/**
+	 * Adds the pages first to last, both inclusive.
+	 */
+	public void addRange(final int first, final int last) {
+		if (last < first)
+			return;
+		ensureOffset(first);
+		bits.set(first - offset, last - offset + 1);
+		size = bits.cardinality();
+	}
+
+	public void addAll(final PageSet other) {
+		// linear in the size of other: merging adds single pages most of the time
+		for (int bit = other.bits.nextSetBit(0); bit >= 0; bit = other.bits.nextSetBit(bit + 1)) {
+			add(other.offset + bit);
+		}
+	}
+
+	private void ensureOffset(final int pgNum) {
+		if (pgNum < 0)
+			throw new IllegalArgumentException("Negative page number: " + pgNum);
+		int alignedPgNum = pgNum & ~63;
+		if (offset < 0) {
+			offset = alignedPgNum;
+		} else if (alignedPgNum < offset) {
+			long[] words = bits.toLongArray();
+			long[] shifted = new long[(offset - alignedPgNum) / 64 + words.length];
+			System.arraycopy(words, 0, shifted, (offset - alignedPgNum) / 64, words.length);
+			bits = BitSet.valueOf(shifted);
+			offset = alignedPgNum;
+		}
+	}
+
+	public boolean contains(final int pgNum) {
+		return offset >= 0 && pgNum >= offset && bits.get(pgNum - offset);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return the smallest page number or -1 if the set is empty
+	 */
+	public int first() {
+		return size == 0 ? -1 : offset + bits.nextSetBit(0);
+	}
+
+	public IntStream stream() {
+		return bits.stream().map(bit -> offset + bit);
+	}
+
+	public int[] toArray() {
+		return stream().toArray();
+	}
+
+	@Override
+	public Iterator<Integer> iterator() {
+		return new Iterator<Integer>() {
+			private int nextBit = bits.nextSetBit(0);
+
+			@Override
+			public boolean hasNext() {
+				return nextBit >= 0;
+			}
+
+			@Override
+			public Integer next() {
+				if (nextBit < 0)
+					throw new NoSuchElementException();
+				int current = nextBit;
+				nextBit = bits.nextSetBit(current + 1);
+				return offset + current;
+			}
+		};
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		return obj instanceof PageSet && size == ((PageSet) obj).size
+				&& Arrays.equals(toArray(), ((PageSet) obj).toArray());
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(toArray());
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(toArray());
+	}
+}
@@ -51,7 +51,7 @@ public class SingleCluster implements Comparable<SingleCluster> {
 	
 	public ClusterImageData getImageData() {
 		if (imageData==null)
-			imageData = new ClusterImageData(pageWidth, pageHeight,pagesToMerge.size());
+			imageData = new ClusterImageData(pageWidth, pageHeight);
 		return imageData;
 	}
 
@@ -20,7 +20,6 @@
 package at.laborg.briss.utils;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 
 import at.laborg.briss.model.ClusterDefinition;
@@ -28,18 +27,23 @@ import at.laborg.briss.model.PageCluster;
 import at.laborg.briss.model.PageExcludes;
 
 import com.itextpdf.text.Rectangle;
-import com.itextpdf.text.pdf.PdfReader;
 
 public final class ClusterCreator {
 	private ClusterCreator() {}
 
 	public static ClusterDefinition clusterPages(final File source,
 			final PageExcludes pageExcludes) throws IOException {
-		PdfReader reader = new PdfReader(new FileInputStream(source.getAbsolutePath()));  // https://stackoverflow.com/questions/53301158/itext-java-11-illegal-reflective-access-by-com-itextpdf-io-source-bytebufferran
+		try (DocumentSession session = DocumentSession.open(source)) {
+			return clusterPages(session, pageExcludes);
+		}
+	}
+
+	public static ClusterDefinition clusterPages(final DocumentSession session,
+			final PageExcludes pageExcludes) {
 		ClusterDefinition clusters = new ClusterDefinition();
-		for (int pgNum = 1; pgNum <= reader.getNumberOfPages(); pgNum++) {
+		for (int pgNum = 1; pgNum <= session.getPageCount(); pgNum++) {
 			// System.out.format( "page %d\n", pgNum );
-			Rectangle layoutBox = getLayoutBox(reader, pgNum);
+			Rectangle layoutBox = session.getLayoutBox(pgNum);
 			PageCluster tmpCluster = new PageCluster(pgNum % 2 == 0,
 					(int) layoutBox.getWidth(),
 					(int) layoutBox.getHeight(),
@@ -47,16 +51,7 @@ public final class ClusterCreator {
 					pgNum);
 			clusters.addOrMergeCluster(tmpCluster);
 		}
-		reader.close();
 		clusters.designatePreviewPages();
 		return clusters;
 	}
-
-	private static Rectangle getLayoutBox(final PdfReader reader, final int pgnum) {
-		Rectangle layoutBox = reader.getBoxSize(pgnum, "crop");
-		if (layoutBox == null) {
-			layoutBox = reader.getBoxSize(pgnum, "media");
-		}
-		return layoutBox;
-	}
 }
@@ -1,55 +1,206 @@
 /**
- * 
+ *
  */
 package at.laborg.briss.utils;
 
+import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jpedal.PdfDecoder;
 import org.jpedal.exception.PdfException;
 
 import at.laborg.briss.model.ClusterDefinition;
+import at.laborg.briss.model.ClusterImageData;
 import at.laborg.briss.model.PageCluster;
 
-public class ClusterRenderWorker extends Thread {
+/*
+ Renders the preview pages of all clusters.  The work items (one per preview
+ page) are distributed across a pool of threads, each of which owns its own
+ PdfDecoder opened on the source file (a PdfDecoder is not thread-safe).
+ Pages found in the PageImageStore or the RenderCache aren't rendered at all;
+ a thread only opens its decoder once it encounters a page which isn't cached.
+ Clusters whose preview is complete already (see
+ ClusterDefinition.reuseImageData) are skipped.
+
+ The clusters' pages are rendered in turns, each cluster's in the order of
+ its preview pages, and the rest of a cluster's pages is skipped as soon
+ as its preview has converged (see ClusterImageData.isConverged).  The
+ pages are merged in that order, too, whichever thread finishes first, so
+ the previews don't depend on the number of threads or their timing.
+ */
+public class ClusterRenderWorker extends PageWorker {
+
+	public static final String RENDER_THREADS_PROPERTY = "briss.renderThreads";
 
-	public int workerUnitCounter = 1;
 	private final File source;
 	private final ClusterDefinition clusters;
+	private final int nrOfDecoders;
+	private final PageImageStore pageImageStore;
+	private RenderCache renderCache;
+	private String docHash;
+	private volatile PreviewListener previewListener = null;
+
+	/**
+	 * Notified from the render threads whenever a page was added to the
+	 * preview of a cluster, e.g. to show previews before all are finished.
+	 * totalPages drops to addedPages once the preview has converged.
+	 */
+	public interface PreviewListener {
+		void previewChanged(PageCluster cluster, int addedPages, int totalPages);
+	}
 
 	public ClusterRenderWorker(final File source, final ClusterDefinition clusters) {
+		this(source, clusters, new PageImageStore());
+	}
+
+	public ClusterRenderWorker(final File source, final ClusterDefinition clusters,
+			final PageImageStore pageImageStore) {
+		this(source, clusters, getDefaultNrOfDecoders(), pageImageStore, RenderCache.createDefault());
+	}
+
+	/**
+	 * @param pageImageStore
+	 *            pages rendered earlier for this source; receives the pages
+	 *            rendered now
+	 * @param renderCache
+	 *            cache to consult before rendering, null to always render
+	 */
+	public ClusterRenderWorker(final File source, final ClusterDefinition clusters, final int nrOfDecoders,
+			final PageImageStore pageImageStore, final RenderCache renderCache) {
 		super();
 		this.source = source;
 		this.clusters = clusters;
+		this.nrOfDecoders = Math.max(1, nrOfDecoders);
+		this.pageImageStore = pageImageStore;
+		this.renderCache = renderCache;
+	}
+
+	public final void setPreviewListener(final PreviewListener previewListener) {
+		this.previewListener = previewListener;
+	}
+
+	public static int getDefaultNrOfDecoders() {
+		return Integer.getInteger(RENDER_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
 	}
 
 	@Override
-	public final void run() {
+	protected final void processPages() {
+		if (renderCache != null) {
+			try {
+				docHash = pageImageStore.getDocumentHash(source);
+			} catch (IOException e) {
+				e.printStackTrace();
+				renderCache = null;
+			}
+		}
+		List<PageCluster> clustersToRender = new ArrayList<>();
+		int maxPreviewPages = 0;
+		for (PageCluster cluster : clusters.getClusterList()) {
+			// TODO jpedal isn't able to render big images correctly,
+			// so let's check if the image is big and throw it away
+			ClusterImageData imageData = cluster.getImageData();
+			if (imageData.isRenderable() && !imageData.hasPreviewImage()) {
+				clustersToRender.add(cluster);
+				maxPreviewPages = Math.max(maxPreviewPages, cluster.getPreviewPgNums().size());
+			}
+		}
+		// the first pages of all clusters first: every preview gets going
+		// early and converges before the threads pile up on its pages
+		List<RenderItem> renderItems = new ArrayList<>();
+		for (int rank = 0; rank < maxPreviewPages; rank++) {
+			for (PageCluster cluster : clustersToRender) {
+				if (rank < cluster.getPreviewPgNums().size()) {
+					renderItems.add(new RenderItem(cluster, rank, cluster.getPreviewPgNums().get(rank)));
+				}
+			}
+		}
+		setNrOfWorkUnits(renderItems.size());
+		AtomicInteger nextItem = new AtomicInteger(0);
+		runInPool(Math.min(nrOfDecoders, renderItems.size()), () -> renderItems(renderItems, nextItem));
+	}
+
+	private void renderItems(final List<RenderItem> renderItems, final AtomicInteger nextItem) {
+		PdfDecoder pdfDecoder = null;
+		int itemIdx;
+		while (!isCancelled() && (itemIdx = nextItem.getAndIncrement()) < renderItems.size()) {
+			RenderItem item = renderItems.get(itemIdx);
+			ClusterImageData imageData = item.cluster.getImageData();
+			if (imageData.isConverged()) {
+				unitDone();
+				continue;
+			}
+			float scale = imageData.getPreviewScale();
+			BufferedImage page = pageImageStore.get(item.pgNum, scale);
+			if (page == null && renderCache != null) {
+				page = renderCache.get(docHash, item.pgNum, scale);
+				if (page != null) {
+					pageImageStore.put(item.pgNum, scale, page);
+				}
+			}
+			try {
+				if (page == null) {
+					if (pdfDecoder == null) {
+						pdfDecoder = openDecoder(source);
+						if (pdfDecoder == null) {
+							imageData.skipPreviewPage(item.previewIdx);
+							return;
+						}
+					}
+					// rasterize at preview size instead of full size plus downscaling
+					pdfDecoder.setPageParameters(scale, item.pgNum);
+					page = pdfDecoder.getPageAsImage(item.pgNum);
+					if (renderCache != null) {
+						page = renderCache.put(docHash, item.pgNum, scale, page);
+					}
+					page = pageImageStore.put(item.pgNum, scale, page);
+				}
+				int addedPages = imageData.addImageToPreview(item.previewIdx, page);
+				PreviewListener listener = previewListener;
+				// nothing to show while the page waits for earlier ones
+				if (listener != null && addedPages > 0) {
+					// a converged preview gets no more pages
+					int totalPages = imageData.isConverged() ? addedPages : item.cluster.getPreviewPgNums().size();
+					listener.previewChanged(item.cluster, addedPages, totalPages);
+				}
+				unitDone();
+			} catch (PdfException e) { // TODO Auto-generated catch block
+				e.printStackTrace();
+				imageData.skipPreviewPage(item.previewIdx);
+			}
+		}
+		if (pdfDecoder != null) {
+			pdfDecoder.closePdfFile();
+		}
+	}
+
+	/**
+	 * @return the decoder or null if the file couldn't be opened
+	 */
+	static PdfDecoder openDecoder(final File source) {
 		PdfDecoder pdfDecoder = new PdfDecoder();
 		try {
-			// System.out.format( "ClusterRenderWorker: pdfDecoder.openPdfFile %s\n", source.getAbsolutePath() );
 			pdfDecoder.openPdfFile(source.getAbsolutePath());
-			// System.out.format( "ClusterRenderWorker: pdfDecoder.openPdfFile %s DONE\n", source.getAbsolutePath() );
 		} catch (PdfException e1) {
 			e1.printStackTrace();
+			return null;
 		}
-		int cnum = 0;
-		for (PageCluster cluster : clusters.getClusterList()) {
-			for (Integer pgNum : cluster.getPreviewPgNums()) {
-				// System.out.format( "ClusterRenderWorker: C%d P%d\n", cnum, pgNum );
-				// TODO jpedal isn't able to render big images correctly,
-				// so let's check if the image is big and throw it away
-				try {
-					if (cluster.getImageData().isRenderable()) {
-						cluster.getImageData().addImageToPreview( pdfDecoder.getPageAsImage(pgNum) );
-						workerUnitCounter++;
-					}
-				} catch (PdfException e) { // TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-			}
-			++cnum;
+		return pdfDecoder;
+	}
+
+	private static final class RenderItem {
+		private final PageCluster cluster;
+		// the page's index in the cluster's preview pages
+		private final int previewIdx;
+		private final int pgNum;
+
+		RenderItem(final PageCluster cluster, final int previewIdx, final int pgNum) {
+			this.cluster = cluster;
+			this.previewIdx = previewIdx;
+			this.pgNum = pgNum;
 		}
-		pdfDecoder.closePdfFile();
 	}
-}
\ No newline at end of file
+}
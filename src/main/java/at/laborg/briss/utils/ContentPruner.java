@@ -0,0 +1,203 @@
+package at.laborg.briss.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.io.RandomAccessSourceFactory;
+import com.itextpdf.text.pdf.PRTokeniser;
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfContentParser;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfNumber;
+import com.itextpdf.text.pdf.PdfObject;
+import com.itextpdf.text.pdf.PdfStream;
+import com.itextpdf.text.pdf.RandomAccessFileOrArray;
+import com.itextpdf.text.pdf.parser.ContentByteUtils;
+import com.itextpdf.text.pdf.parser.InlineImageUtils;
+import com.itextpdf.text.pdf.parser.Matrix;
+import com.itextpdf.text.pdf.parser.Vector;
+
+/*
+ Cropping only sets a page's boxes: the images and forms (XObjects) it
+ draws outside of them are still in the output, only hidden.  The pruner
+ removes the Do operators which draw an XObject entirely outside the crop
+ box from a copy of the page's content, along with the XObjects no longer
+ drawn from the page's resources, so that they aren't copied to the output
+ at all.  Everything else in the content is kept byte for byte; XObjects
+ drawn partly inside the crop box are kept whole.
+
+ Only the transformations of the content itself (cm, q and Q) are tracked:
+ an XObject is removed if the bounding box of its unit square (images) or
+ of its BBox (forms) lies outside the crop box, clipping isn't taken into
+ account.
+ */
+final class ContentPruner {
+
+	private static final String SAVE_STATE = "q";
+	private static final String RESTORE_STATE = "Q";
+	private static final String CONCAT_MATRIX = "cm";
+	private static final String DRAW_XOBJECT = "Do";
+	private static final String BEGIN_INLINE_IMAGE = "BI";
+
+	private ContentPruner() {}
+
+	/**
+	 * Removes the XObjects the page draws entirely outside the box from the
+	 * page dictionary's resources (replacing them with a direct copy). The
+	 * resources are left alone if a form the page still draws has none of
+	 * its own: it draws with the page's.
+	 *
+	 * @param pageDict
+	 *            the page, with its inherited resources
+	 * @param box
+	 *            the crop box in default user space
+	 * @return the page's content without the XObjects removed or null if
+	 *         the page draws none outside the box (or its content can't be
+	 *         parsed) and is left as it is
+	 */
+	static byte[] prune(final PdfDictionary pageDict, final Rectangle box) {
+		PdfDictionary resources = pageDict.getAsDict(PdfName.RESOURCES);
+		PdfDictionary xObjects = resources == null ? null : resources.getAsDict(PdfName.XOBJECT);
+		// a page without content (e.g. a blank one) draws nothing
+		if (xObjects == null || pageDict.get(PdfName.CONTENTS) == null)
+			return null;
+		byte[] content;
+		ByteArrayOutputStream prunedContent;
+		Set<PdfName> drawnXObjects = new HashSet<>();
+		boolean pruned = false;
+		// the content up to here is in prunedContent already
+		int copiedUpTo = 0;
+		try {
+			content = ContentByteUtils.getContentBytesFromContentObject(pageDict.get(PdfName.CONTENTS));
+			prunedContent = new ByteArrayOutputStream(content.length);
+			PdfContentParser parser = new PdfContentParser(new PRTokeniser(new RandomAccessFileOrArray(
+					new RandomAccessSourceFactory().createSource(content))));
+			Deque<Matrix> stateStack = new ArrayDeque<>();
+			Matrix ctm = new Matrix();
+			ArrayList<PdfObject> operands = new ArrayList<>();
+			// the end of the previous operator
+			int previousEnd = 0;
+			for (; parser.parse(operands).size() > 0; previousEnd = (int) parser.getTokeniser().getFilePointer()) {
+				String operator = operands.get(operands.size() - 1).toString();
+				if (SAVE_STATE.equals(operator)) {
+					stateStack.push(ctm);
+				} else if (RESTORE_STATE.equals(operator)) {
+					if (!stateStack.isEmpty()) {
+						ctm = stateStack.pop();
+					}
+				} else if (CONCAT_MATRIX.equals(operator) && operands.size() == 7) {
+					ctm = getMatrix(operands).multiply(ctm);
+				} else if (DRAW_XOBJECT.equals(operator) && operands.size() == 2 && operands.get(0).isName()) {
+					PdfName name = (PdfName) operands.get(0);
+					if (isOutside(xObjects.getAsStream(name), ctm, box)) {
+						// drop the operator and its operand, keeping a separator
+						int operatorStart = skipWhitespace(content, previousEnd);
+						prunedContent.write(content, copiedUpTo, operatorStart - copiedUpTo);
+						prunedContent.write(' ');
+						copiedUpTo = (int) parser.getTokeniser().getFilePointer();
+						pruned = true;
+						continue;
+					}
+					drawnXObjects.add(name);
+				} else if (BEGIN_INLINE_IMAGE.equals(operator)) {
+					// skip the image's data, which isn't made of tokens
+					InlineImageUtils.parseInlineImage(parser, resources.getAsDict(PdfName.COLORSPACE));
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			// content iText can't read or parse is left alone
+			return null;
+		}
+		if (!pruned)
+			return null;
+		prunedContent.write(content, copiedUpTo, content.length - copiedUpTo);
+		PdfDictionary prunedXObjects = new PdfDictionary();
+		for (PdfName name : drawnXObjects) {
+			PdfStream xObject = xObjects.getAsStream(name);
+			// a form without resources of its own uses the page's, and may
+			// draw the XObjects the page doesn't draw itself
+			if (xObject != null && PdfName.FORM.equals(xObject.getAsName(PdfName.SUBTYPE))
+					&& xObject.get(PdfName.RESOURCES) == null)
+				return prunedContent.toByteArray();
+			prunedXObjects.put(name, xObjects.get(name));
+		}
+		PdfDictionary prunedResources = new PdfDictionary();
+		prunedResources.putAll(resources);
+		prunedResources.put(PdfName.XOBJECT, prunedXObjects);
+		pageDict.put(PdfName.RESOURCES, prunedResources);
+		return prunedContent.toByteArray();
+	}
+
+	/**
+	 * @return the position of the first byte from the position on which
+	 *         isn't whitespace
+	 */
+	private static int skipWhitespace(final byte[] content, final int position) {
+		int end = position;
+		while (end < content.length && PRTokeniser.isWhitespace(content[end])) {
+			end++;
+		}
+		return end;
+	}
+
+	private static Matrix getMatrix(final List<PdfObject> operands) {
+		float[] values = new float[6];
+		for (int i = 0; i < 6; i++) {
+			values[i] = operands.get(i).isNumber() ? ((PdfNumber) operands.get(i)).floatValue() : 0;
+		}
+		return new Matrix(values[0], values[1], values[2], values[3], values[4], values[5]);
+	}
+
+	/**
+	 * @return true if the XObject drawn with the transformation lies
+	 *         entirely outside the box, false if not or it's unknown
+	 */
+	private static boolean isOutside(final PdfStream xObject, final Matrix ctm, final Rectangle box) {
+		if (xObject == null)
+			return false;
+		Matrix matrix = ctm;
+		Rectangle bounds;
+		if (PdfName.IMAGE.equals(xObject.getAsName(PdfName.SUBTYPE))) {
+			// an image fills the unit square in image space
+			bounds = new Rectangle(0, 0, 1, 1);
+		} else if (PdfName.FORM.equals(xObject.getAsName(PdfName.SUBTYPE))) {
+			PdfArray bBox = xObject.getAsArray(PdfName.BBOX);
+			if (bBox == null || bBox.size() != 4)
+				return false;
+			bounds = new Rectangle(bBox.getAsNumber(0).floatValue(), bBox.getAsNumber(1).floatValue(),
+					bBox.getAsNumber(2).floatValue(), bBox.getAsNumber(3).floatValue());
+			PdfArray formMatrix = xObject.getAsArray(PdfName.MATRIX);
+			if (formMatrix != null && formMatrix.size() == 6) {
+				List<PdfObject> values = new ArrayList<>();
+				for (int i = 0; i < formMatrix.size(); i++) {
+					values.add(formMatrix.getDirectObject(i));
+				}
+				matrix = getMatrix(values).multiply(ctm);
+			}
+		} else {
+			return false;
+		}
+		float left = Float.MAX_VALUE, bottom = Float.MAX_VALUE, right = -Float.MAX_VALUE, top = -Float.MAX_VALUE;
+		Vector[] corners = { new Vector(bounds.getLeft(), bounds.getBottom(), 1),
+				new Vector(bounds.getRight(), bounds.getBottom(), 1), new Vector(bounds.getLeft(), bounds.getTop(), 1),
+				new Vector(bounds.getRight(), bounds.getTop(), 1) };
+		for (Vector corner : corners) {
+			Vector point = corner.cross(matrix);
+			float x = point.get(Vector.I1);
+			float y = point.get(Vector.I2);
+			left = Math.min(left, x);
+			right = Math.max(right, x);
+			bottom = Math.min(bottom, y);
+			top = Math.max(top, y);
+		}
+		return right <= box.getLeft() || left >= box.getRight() || top <= box.getBottom() || bottom >= box.getTop();
+	}
+}
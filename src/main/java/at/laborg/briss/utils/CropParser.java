@@ -3,42 +3,47 @@ package at.laborg.briss.utils;
 import java.util.ArrayList;
 import java.util.List;
 
+import at.laborg.briss.model.CropRectangle;
+
 public class CropParser {
-	public static List<List<Float[]>> parse (String string) {
-		List<List<Float[]>> crop = new ArrayList<>();
+	public static List<List<CropRectangle>> parse (String string) {
+		List<List<CropRectangle>> crop = new ArrayList<>();
 		for(String page : string.split(":")) {
-			List<Float[]> pageratios = new ArrayList<>();
+			List<CropRectangle> pageratios = new ArrayList<>();
 			crop.add(pageratios);
 			for(String part : page.split(",")) {
 				String[] parts = part.split("/");
-				Float[] ratios = new Float[parts.length];
-				for(int i = 0; i < ratios.length; i++) {
-					ratios[i] = Float.parseFloat(parts[i]);
+				if (parts.length != 4) {
+					throw new IllegalArgumentException("crop '" + part + "' doesn't consist of 4 ratios");
 				}
-				pageratios.add(ratios);
+				pageratios.add(new CropRectangle(Float.parseFloat(parts[0]), Float.parseFloat(parts[1]),
+						Float.parseFloat(parts[2]), Float.parseFloat(parts[3])));
 			}
 		}
 		return crop;
 	}
-	public static String cropToString (List<List<Float[]>> clusters) {
+	public static String cropToString (List<List<CropRectangle>> clusters) {
 		StringBuilder crop = new StringBuilder();
 
 		int i = -1;
-		for(List<Float[]> cluster : clusters) {
+		for(List<CropRectangle> cluster : clusters) {
 			++i;
 			if (i > 0) crop.append(":");
 			int j = -1;
-			for(Float[] parts : cluster) {
+			for(CropRectangle ratios : cluster) {
 				++j;
 				if (j > 0) crop.append(',');
-				for(int k = 0; k < parts.length; k++) {
-					if (k > 0) crop.append('/');
-					// cut away those huge decimals
-					if (0.0 == parts[k]) crop.append('0');
-					else crop.append(String.valueOf(parts[k].floatValue()));
-				}
+				appendRatio(crop, ratios.getxToLeft()).append('/');
+				appendRatio(crop, ratios.getyToBottom()).append('/');
+				appendRatio(crop, ratios.getxToRight()).append('/');
+				appendRatio(crop, ratios.getyToTop());
 			}
 		}
 		return crop.toString ();
 	}
+	private static StringBuilder appendRatio (StringBuilder crop, float ratio) {
+		// cut away those huge decimals
+		if (0.0 == ratio) return crop.append('0');
+		else return crop.append(ratio);
+	}
 }
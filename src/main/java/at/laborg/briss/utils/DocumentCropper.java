@@ -19,7 +19,6 @@
 package at.laborg.briss.utils;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -30,131 +29,271 @@ import java.util.StringTokenizer;
 
 import at.laborg.briss.exception.CropException;
 import at.laborg.briss.model.CropDefinition;
+import at.laborg.briss.model.CropRectangle;
 
 import com.itextpdf.text.Document;
 import com.itextpdf.text.DocumentException;
 import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.pdf.PRIndirectReference;
 import com.itextpdf.text.pdf.PdfArray;
 import com.itextpdf.text.pdf.PdfDestination;
 import com.itextpdf.text.pdf.PdfDictionary;
 import com.itextpdf.text.pdf.PdfImportedPage;
 import com.itextpdf.text.pdf.PdfName;
 import com.itextpdf.text.pdf.PdfNumber;
+import com.itextpdf.text.pdf.PdfObject;
 import com.itextpdf.text.pdf.PdfReader;
 import com.itextpdf.text.pdf.PdfSmartCopy;
 import com.itextpdf.text.pdf.PdfStamper;
-import com.itextpdf.text.pdf.SimpleBookmark;
-import com.itextpdf.text.pdf.SimpleNamedDestination;
+import com.itextpdf.text.pdf.PdfString;
+import com.itextpdf.text.pdf.PdfWriter;
 
 public final class DocumentCropper {
+	/*
+	   Neither crop keeps the pages it has written: the incremental update
+	   writes each changed page dictionary as soon as it's set, the copy
+	   releases each page after it was added and flushes the objects it has
+	   imported every PAGES_PER_FLUSH pages.  The heap still grows with the
+	   page count, though only by the bookkeeping: the destination's xref
+	   and page tree and PdfSmartCopy's hashes of the objects written, about
+	   300 bytes per page written, and the mapping of each source page to
+	   its copy, which the flush keeps for the links between pages (see
+	   SplitPageCopy.freeReader), about 100 bytes per source page.  So
+	   50000 pages split into 100000 need some 35 MB besides the pages being
+	   copied and crop within 64 MB of heap (see StreamingCropStressTest).
+
+	   After a flush the copy doesn't know which source objects it has
+	   copied already, but resources shared by many pages (fonts, images)
+	   still aren't copied twice: PdfSmartCopy recognizes streams and
+	   dictionaries by their content.
+	 */
+	private static final int PAGES_PER_FLUSH = 500;
+
 	private DocumentCropper() {}
 
 	public static File crop(final CropDefinition cropDefinition)
 			throws IOException, DocumentException, CropException {
+		try (DocumentSession session = DocumentSession.open(cropDefinition.getSourceFile())) {
+			return crop(cropDefinition, session);
+		}
+	}
+
+	/**
+	 * @param session
+	 *            the already parsed source of the crop definition
+	 */
+	public static File crop(final CropDefinition cropDefinition, final DocumentSession session)
+			throws IOException, DocumentException, CropException {
 		// check if everything is ready
 		if (!BrissFileHandling.checkValidStateAndCreate(cropDefinition.getDestinationFile())) {
 			throw new IOException("Destination file not valid");
 		}
 		// check if file is encrypted and needs a password
-		if (isPasswordRequired(cropDefinition.getSourceFile())) {
+		if (session.isEncrypted()) {
 			throw new CropException("Password required to crop source file");
 		}
-		// read out necessary meta information
-		PdfMetaInformation pdfMetaInformation = new PdfMetaInformation(cropDefinition.getSourceFile());
-		// first make a copy containing the right amount of pages
-		File intermediatePdf = copyToMultiplePages(cropDefinition, pdfMetaInformation);
-		// now crop all pages according to their ratios
-		cropMultipliedFile(cropDefinition, intermediatePdf, pdfMetaInformation);
+		if (needsCopy(cropDefinition, session)) {
+			cropPages(cropDefinition, session);
+		} else {
+			cropPagesIncrementally(cropDefinition, session);
+		}
 		return cropDefinition.getDestinationFile();
 	}
 
-	private static File copyToMultiplePages(
-			final CropDefinition cropDefinition,
-			final PdfMetaInformation pdfMetaInformation) throws IOException, DocumentException {
+	/**
+	 * @return true if the destination can't be an incremental update, which
+	 *         keeps all of the source as it is: an update of a source with
+	 *         a broken cross-reference table would point to offsets which
+	 *         aren't there, so PdfStamper refuses to append to it
+	 */
+	private static boolean needsCopy(final CropDefinition cropDefinition, final DocumentSession session) {
+		return session.isRebuilt() || cropDefinition.hasSplitPages() || cropDefinition.isPruneContent() || cropDefinition.isFullCompression()
+				|| cropDefinition.getCompressionLevel() != CropDefinition.KEEP_COMPRESSION_LEVEL;
+	}
+
+	/**
+	 * Fast path for crops which don't split any page (and don't change the
+	 * way it's written): only the boxes of the cropped pages change, so the
+	 * source is copied unchanged and the new page dictionaries are appended
+	 * as an incremental update.
+	 */
+	private static void cropPagesIncrementally(final CropDefinition cropDefinition, final DocumentSession session)
+			throws IOException, DocumentException {
+		PdfReader reader = session.createReaderCopy();
+		PdfStamper stamper = new PdfStamper(reader, new FileOutputStream(cropDefinition.getDestinationFile()), '\0', true);
+		PdfWriter writer = stamper.getWriter();
+		for (int pageNumber = 1; pageNumber <= session.getPageCount(); pageNumber++) {
+			List<CropRectangle> rectangleList = cropDefinition.getRectanglesForPage(pageNumber);
+			// if no crop was selected do nothing
+			if (rectangleList.isEmpty()) {
+				continue;
+			}
+			PageBoxes pageBoxes = session.getPageBoxes(pageNumber);
+			Rectangle scaledBox = RectangleHandler.calculateScaledRectangle(pageBoxes.getBoxes(),
+					rectangleList.get(0), pageBoxes.getRotation());
+			PdfArray scaleBoxArray = createScaledBoxArray(scaledBox);
+			// the stamper keeps all pages read through the page tree until it
+			// is closed: read the page object itself (inherited attributes
+			// stay with its parent) and write it to the update right away,
+			// under its old object number
+			PRIndirectReference pageRef = session.getPageReference(pageNumber);
+			PdfDictionary pageDict = (PdfDictionary) reader.getPdfObjectRelease(pageRef.getNumber());
+			pageDict.put(PdfName.CROPBOX, scaleBoxArray);
+			pageDict.put(PdfName.MEDIABOX, scaleBoxArray);
+			writer.addToBody(pageDict, pageRef);
+		}
+		stamper.close();
+		reader.close();
+	}
 
-		PdfReader reader = new PdfReader(new FileInputStream(cropDefinition.getSourceFile().getAbsolutePath()));  // https://stackoverflow.com/questions/53301158/itext-java-11-illegal-reflective-access-by-com-itextpdf-io-source-bytebufferran
-		HashMap<String, String> map = SimpleNamedDestination.getNamedDestination(reader, false);
+	/**
+	 * Writes the destination in a single pass over the source: every source
+	 * page is imported once per crop rectangle, each time with its crop and
+	 * media box already set to that rectangle (and, if the content is
+	 * pruned, without the XObjects outside of it).
+	 */
+	private static void cropPages(final CropDefinition cropDefinition, final DocumentSession session)
+			throws IOException, DocumentException {
+		// the page dictionaries get modified, so work on a copy of the session's document
+		PdfReader reader = session.createReaderCopy();
+		// read out necessary meta information
+		PdfMetaInformation pdfMetaInformation = new PdfMetaInformation(session);
+		int[] newPageNumbers = getNewPageNumbers(cropDefinition, pdfMetaInformation.getSourcePageCount());
 		Document document = new Document();
-		File resultFile = File.createTempFile("cropped", ".pdf");
-		PdfSmartCopy pdfCopy = new PdfSmartCopy(document, new FileOutputStream(resultFile));
+		SplitPageCopy pdfCopy = new SplitPageCopy(document, new FileOutputStream(cropDefinition.getDestinationFile()));
+		if (cropDefinition.isFullCompression()) {
+			pdfCopy.setFullCompression();
+		}
+		if (cropDefinition.getCompressionLevel() != CropDefinition.KEEP_COMPRESSION_LEVEL) {
+			pdfCopy.setRecompressionLevel(cropDefinition.getCompressionLevel());
+		}
 		document.open();
-		Map<Integer, List<String>> pageNrToDestinations = new HashMap<>();
-		for (String single : map.keySet()) {
-			StringTokenizer st = new StringTokenizer(map.get(single), " ");
-			if (st.hasMoreElements()) {
-				String pageNrString = (String) st.nextElement();
-				int pageNr = Integer.parseInt(pageNrString);
-				List<String> singleList = (pageNrToDestinations.get(pageNr));
-				if (singleList == null) {
-					singleList = new ArrayList<>();
-					singleList.add(single);
-					pageNrToDestinations.put(pageNr, singleList);
+		for (int pageNumber = 1; pageNumber <= pdfMetaInformation.getSourcePageCount(); pageNumber++) {
+			PdfImportedPage pdfPage = pdfCopy.getImportedPage(reader, pageNumber);
+			List<CropRectangle> rectangleList = cropDefinition.getRectanglesForPage(pageNumber);
+			// if no crop was selected copy the page as is
+			if (rectangleList.isEmpty()) {
+				pdfCopy.addPage(pdfPage);
+				releasePage(pdfCopy, reader, pageNumber);
+				continue;
+			}
+			// read the boxes from the page dictionary (with its inherited
+			// attributes) which is copied next, instead of through the session
+			PdfDictionary pageDict = reader.getPageN(pageNumber);
+			PageBoxes pageBoxes = PageBoxes.read(pageDict);
+			for (CropRectangle ratios : rectangleList) {
+				Rectangle scaledBox = RectangleHandler.calculateScaledRectangle(pageBoxes.getBoxes(), ratios,
+						pageBoxes.getRotation());
+				PdfArray scaleBoxArray = createScaledBoxArray(scaledBox);
+				// the page dictionary is copied by addPage, so every copy keeps
+				// its own boxes; addPage releases the page, so read it again
+				pageDict = reader.getPageN(pageNumber);
+				pageDict.put(PdfName.CROPBOX, scaleBoxArray);
+				pageDict.put(PdfName.MEDIABOX, scaleBoxArray);
+				byte[] prunedContent = cropDefinition.isPruneContent() ? ContentPruner.prune(pageDict, scaledBox) : null;
+				if (prunedContent != null) {
+					pdfCopy.addPage(pdfPage, prunedContent);
 				} else {
-					singleList.add(single);
+					pdfCopy.addPage(pdfPage);
 				}
 			}
+			releasePage(pdfCopy, reader, pageNumber);
 		}
-		int outputPageNumber = 0;
-		for (int pageNumber = 1; pageNumber <= pdfMetaInformation.getSourcePageCount(); pageNumber++) {
-			PdfImportedPage pdfPage = pdfCopy.getImportedPage(reader,pageNumber);
-			pdfCopy.addPage(pdfPage);
-			outputPageNumber++;
-			List<String> destinations = pageNrToDestinations.get(pageNumber);
-			if (destinations != null) {
-				for (String destination : destinations)
-					pdfCopy.addNamedDestination(destination, outputPageNumber, new PdfDestination(PdfDestination.FIT));
-			}
-			List<Float[]> rectangles = cropDefinition.getRectanglesForPage(pageNumber);
-			for (int j = 1; j < rectangles.size(); j++) {
-				pdfCopy.addPage(pdfPage);
-				outputPageNumber++;
-			}
+		addNamedDestinations(pdfCopy, session.getNamedDestinations(), newPageNumbers);
+		List<HashMap<String, Object>> bookmarks = pdfMetaInformation.getSourceBookmarks();
+		renumberBookmarks(bookmarks, newPageNumbers);
+		pdfCopy.setOutlines(bookmarks);
+		for (Map.Entry<String, String> info : pdfMetaInformation.getSourceMetaInfo().entrySet()) {
+			pdfCopy.getInfo().put(new PdfName(info.getKey()), new PdfString(info.getValue(), PdfObject.TEXT_UNICODE));
+		}
+		byte[] xmpMetadata = session.getXmpMetadata();
+		if (xmpMetadata != null) {
+			pdfCopy.setXmpMetadata(xmpMetadata);
 		}
 		document.close();
 		pdfCopy.close();
 		reader.close();
-		return resultFile;
 	}
 
-	private static void cropMultipliedFile(final CropDefinition cropDefinition,
-			final File multipliedDocument,
-			final PdfMetaInformation pdfMetaInformation)
-			throws DocumentException, IOException {
-		PdfReader reader = new PdfReader(new FileInputStream(multipliedDocument.getAbsolutePath()));  // https://stackoverflow.com/questions/53301158/itext-java-11-illegal-reflective-access-by-com-itextpdf-io-source-bytebufferran
-		PdfStamper stamper = new PdfStamper(reader, new FileOutputStream(cropDefinition.getDestinationFile()));
-		stamper.setMoreInfo(pdfMetaInformation.getSourceMetaInfo());
-		PdfDictionary pageDict;
+	/**
+	 * Drops what the reader and the copy keep of a page which was written:
+	 * the parsed page dictionary right away, the imported pages and the
+	 * mapping of the objects copied so far every PAGES_PER_FLUSH pages.
+	 */
+	private static void releasePage(final PdfSmartCopy pdfCopy, final PdfReader reader, final int pageNumber)
+			throws IOException {
+		reader.releasePage(pageNumber);
+		if (pageNumber % PAGES_PER_FLUSH == 0) {
+			pdfCopy.freeReader(reader);
+		}
+	}
+
+	/**
+	 * @return the number of the first page each source page is cropped
+	 *         into, indexed by the source page number
+	 */
+	private static int[] getNewPageNumbers(final CropDefinition cropDefinition, final int sourcePageCount) {
+		int[] newPageNumbers = new int[sourcePageCount + 1];
 		int newPageNumber = 1;
-		int lastPageNumber = pdfMetaInformation.getSourcePageCount();  // continuously updated
-		for (int sourcePageNumber = 1; sourcePageNumber <= pdfMetaInformation.getSourcePageCount(); sourcePageNumber++) {
-			List<Float[]> rectangleList = cropDefinition.getRectanglesForPage(sourcePageNumber);
-			// if no crop was selected do nothing
-			if (rectangleList.isEmpty()) {
-				newPageNumber++;
-				continue;
+		for (int pageNumber = 1; pageNumber <= sourcePageCount; pageNumber++) {
+			newPageNumbers[pageNumber] = newPageNumber;
+			// a page without crops is copied as is
+			newPageNumber += Math.max(1, cropDefinition.getRectanglesForPage(pageNumber).size());
+		}
+		return newPageNumbers;
+	}
+
+	/**
+	 * @param destinations
+	 *            as returned by DocumentSession.getNamedDestinations
+	 */
+	private static void addNamedDestinations(final PdfSmartCopy pdfCopy, final Map<String, String> destinations,
+			final int[] newPageNumbers) {
+		for (Map.Entry<String, String> destination : destinations.entrySet()) {
+			int pageNumber = getPageNumber(destination.getValue());
+			if (pageNumber > 0 && pageNumber < newPageNumbers.length) {
+				pdfCopy.addNamedDestination(destination.getKey(), newPageNumbers[pageNumber],
+						new PdfDestination(PdfDestination.FIT));
 			}
-			// references to pages 1 .. newPageNumber are already correct;
-			// since N new pages replace 1 old page,
-			// shift references to all subsequent pages by N-1
-			int[] range = new int[] { newPageNumber + 1, lastPageNumber };
-			SimpleBookmark.shiftPageNumbers(pdfMetaInformation.getSourceBookmarks(), rectangleList.size() - 1, range);
-			for (Float[] ratios : rectangleList) {
-				pageDict = reader.getPageN(newPageNumber);
-				List<Rectangle> boxes = new ArrayList<>();
-				boxes.add(reader.getBoxSize(newPageNumber, "media"));
-				boxes.add(reader.getBoxSize(newPageNumber, "crop"));
-				int rotation = reader.getPageRotation(newPageNumber);
-				Rectangle scaledBox = RectangleHandler.calculateScaledRectangle(boxes, ratios, rotation);
-				PdfArray scaleBoxArray = createScaledBoxArray(scaledBox);
-				pageDict.put(PdfName.CROPBOX, scaleBoxArray);
-				pageDict.put(PdfName.MEDIABOX, scaleBoxArray);
-				newPageNumber++;
-				lastPageNumber++;
+		}
+	}
+
+	/**
+	 * Points the GoTo bookmarks (see SimpleBookmark) to the first page their
+	 * source page is cropped into, in a single pass over the outline.
+	 */
+	private static void renumberBookmarks(final List<HashMap<String, Object>> bookmarks, final int[] newPageNumbers) {
+		if (bookmarks == null)
+			return;
+		for (HashMap<String, Object> bookmark : bookmarks) {
+			String page = (String) bookmark.get("Page");
+			if ("GoTo".equals(bookmark.get("Action")) && page != null) {
+				int pageNumber = getPageNumber(page);
+				if (pageNumber > 0 && pageNumber < newPageNumbers.length) {
+					String view = page.trim().substring(Integer.toString(pageNumber).length());
+					bookmark.put("Page", newPageNumbers[pageNumber] + view);
+				}
 			}
+			@SuppressWarnings("unchecked")
+			List<HashMap<String, Object>> kids = (List<HashMap<String, Object>>) bookmark.get("Kids");
+			renumberBookmarks(kids, newPageNumbers);
+		}
+	}
+
+	/**
+	 * @param page
+	 *            a page number followed by a view, e.g. "12 XYZ 36 800 0"
+	 * @return the page number or 0 if there is none
+	 */
+	private static int getPageNumber(final String page) {
+		StringTokenizer st = new StringTokenizer(page, " ");
+		if (!st.hasMoreTokens())
+			return 0;
+		try {
+			return Integer.parseInt(st.nextToken());
+		} catch (NumberFormatException e) {
+			return 0;
 		}
-		stamper.setOutlines(pdfMetaInformation.getSourceBookmarks());
-		stamper.close();
-		reader.close();
 	}
 
 	private static PdfArray createScaledBoxArray(final Rectangle scaledBox) {
@@ -166,26 +305,16 @@ public final class DocumentCropper {
 		return scaleBoxArray;
 	}
 
-	public static boolean isPasswordRequired(final File file)
-			throws IOException {
-		PdfReader reader = new PdfReader(new FileInputStream(file.getAbsolutePath()));  // https://stackoverflow.com/questions/53301158/itext-java-11-illegal-reflective-access-by-com-itextpdf-io-source-bytebufferran
-		boolean isEncrypted = reader.isEncrypted();
-		reader.close();
-		return isEncrypted;
-	}
-
 	private static class PdfMetaInformation {
 
 		private final int sourcePageCount;
 		private final HashMap<String, String> sourceMetaInfo;
 		private final List<HashMap<String, Object>> sourceBookmarks;
 
-		public PdfMetaInformation(final File source) throws IOException {
-			PdfReader reader = new PdfReader(new FileInputStream(source.getAbsolutePath()));  // https://stackoverflow.com/questions/53301158/itext-java-11-illegal-reflective-access-by-com-itextpdf-io-source-bytebufferran
-			this.sourcePageCount = reader.getNumberOfPages();
-			this.sourceMetaInfo = reader.getInfo();
-			this.sourceBookmarks = SimpleBookmark.getBookmark(reader);
-			reader.close();
+		public PdfMetaInformation(final DocumentSession session) {
+			this.sourcePageCount = session.getPageCount();
+			this.sourceMetaInfo = session.getInfo();
+			this.sourceBookmarks = session.getBookmarks();
 		}
 
 		public int getSourcePageCount() {
@@ -0,0 +1,217 @@
+package at.laborg.briss.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.io.GetBufferedRandomAccessSource;
+import com.itextpdf.text.io.RandomAccessSourceFactory;
+import com.itextpdf.text.pdf.IntHashtable;
+import com.itextpdf.text.pdf.PRIndirectReference;
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfIndirectReference;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfObject;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.RandomAccessFileOrArray;
+import com.itextpdf.text.pdf.SimpleBookmark;
+import com.itextpdf.text.pdf.parser.ContentByteUtils;
+import com.itextpdf.text.pdf.parser.PdfContentStreamProcessor;
+
+/*
+ A source PDF parsed once (xref, page tree) for a whole job: clustering,
+ checking for encryption and cropping all read from the same session
+ instead of each opening their own PdfReader.  The session's reader is never
+ modified; stages which change page dictionaries work on a copy.  Not
+ thread-safe: only one stage at a time may read the session or its copies.
+
+ The file isn't loaded into the heap: the reader works on a random-access
+ view of it and only parses objects when they are asked for (partial
+ mode), so that scanning the page boxes of a huge scan touches little more
+ than the page tree.  Pages are released again after their boxes were read.
+ Objects in object streams are read through a cache of decoded streams
+ (see ObjectStreamCachingReader).
+ By default the file is read through a plain RandomAccessFile; with
+ -Dbriss.mapSource=true it is memory mapped instead, which is faster on
+ some systems but leads to an illegal-reflective-access warning on Java 11
+ when the mapping is released.
+ */
+public final class DocumentSession implements Closeable {
+
+	public static final String MAP_SOURCE_PROPERTY = "briss.mapSource";
+
+	private final File source;
+	private final ObjectStreamCachingReader reader;
+
+	private DocumentSession(final File source, final ObjectStreamCachingReader reader) {
+		this.source = source;
+		this.reader = reader;
+	}
+
+	public static DocumentSession open(final File source) throws IOException {
+		// https://stackoverflow.com/questions/53301158/itext-java-11-illegal-reflective-access-by-com-itextpdf-io-source-bytebufferran
+		RandomAccessSourceFactory sourceFactory = new RandomAccessSourceFactory()
+				.setUsePlainRandomAccess(!Boolean.getBoolean(MAP_SOURCE_PROPERTY));
+		// the parser reads objects byte by byte: don't make that a system call each time
+		RandomAccessFileOrArray file = new RandomAccessFileOrArray(new GetBufferedRandomAccessSource(
+				sourceFactory.createBestSource(source.getAbsolutePath())));
+		return new DocumentSession(source, new ObjectStreamCachingReader(file));
+	}
+
+	public File getSourceFile() {
+		return source;
+	}
+
+	public int getPageCount() {
+		return reader.getNumberOfPages();
+	}
+
+	public boolean isEncrypted() {
+		return reader.isEncrypted();
+	}
+
+	/**
+	 * @return true if the cross-reference table was broken and the objects
+	 *         had to be found by scanning the file
+	 */
+	public boolean isRebuilt() {
+		return reader.isRebuilt();
+	}
+
+	public Rectangle getMediaBox(final int pgNum) {
+		return getBox(pgNum, "media");
+	}
+
+	/**
+	 * @return the crop box or null if the page has none
+	 */
+	public Rectangle getCropBox(final int pgNum) {
+		return getBox(pgNum, "crop");
+	}
+
+	/**
+	 * @return the crop box or, if the page has none, the media box
+	 */
+	public Rectangle getLayoutBox(final int pgNum) {
+		Rectangle layoutBox = getCropBox(pgNum);
+		if (layoutBox == null) {
+			layoutBox = getMediaBox(pgNum);
+		}
+		return layoutBox;
+	}
+
+	/**
+	 * @return the page's boxes and rotation, read in one lookup of the page
+	 */
+	public PageBoxes getPageBoxes(final int pgNum) {
+		PageBoxes pageBoxes = PageBoxes.read(reader.getPageN(pgNum));
+		reader.releasePage(pgNum);
+		return pageBoxes;
+	}
+
+	public int getRotation(final int pgNum) {
+		int rotation = reader.getPageRotation(pgNum);
+		reader.releasePage(pgNum);
+		return rotation;
+	}
+
+	/**
+	 * @return the reference to the page's object, which is valid in the
+	 *         session's reader copies, too
+	 */
+	public PRIndirectReference getPageReference(final int pgNum) {
+		PRIndirectReference pageRef = reader.getPageOrigRef(pgNum);
+		reader.releasePage(pgNum);
+		return pageRef;
+	}
+
+	private Rectangle getBox(final int pgNum, final String boxName) {
+		Rectangle box = reader.getBoxSize(pgNum, boxName);
+		reader.releasePage(pgNum);
+		return box;
+	}
+
+	public HashMap<String, String> getInfo() {
+		return reader.getInfo();
+	}
+
+	public byte[] getXmpMetadata() throws IOException {
+		return reader.getMetadata();
+	}
+
+	/**
+	 * @return a fresh copy of the outline on every call: callers may shift
+	 *         its page numbers
+	 */
+	public List<HashMap<String, Object>> getBookmarks() {
+		return SimpleBookmark.getBookmark(reader);
+	}
+
+	/**
+	 * @return the named destinations as SimpleNamedDestination describes
+	 *         them: the page number followed by the type and parameters of
+	 *         the view, e.g. "12 XYZ 36 800 0"
+	 */
+	public HashMap<String, String> getNamedDestinations() {
+		// SimpleNamedDestination.getNamedDestination looks up all pages
+		// without releasing them, which leaves every page of the document
+		// parsed in the session
+		IntHashtable pgNumsByObjNum = new IntHashtable();
+		for (int pgNum = 1; pgNum <= reader.getNumberOfPages(); pgNum++) {
+			pgNumsByObjNum.put(getPageReference(pgNum).getNumber(), pgNum);
+		}
+		HashMap<String, String> namedDestinations = new HashMap<>();
+		for (Map.Entry<String, PdfObject> entry : reader.getNamedDestinationFromStrings().entrySet()) {
+			PdfArray destination = (PdfArray) entry.getValue();
+			PdfIndirectReference pageRef = destination.getAsIndirectObject(0);
+			if (pageRef == null || destination.size() < 2)
+				continue;
+			StringBuilder pageAndView = new StringBuilder();
+			pageAndView.append(pgNumsByObjNum.get(pageRef.getNumber()));
+			pageAndView.append(' ').append(destination.getPdfObject(1).toString().substring(1));
+			for (int i = 2; i < destination.size(); i++) {
+				pageAndView.append(' ').append(destination.getPdfObject(i).toString());
+			}
+			namedDestinations.put(entry.getKey(), pageAndView.toString());
+		}
+		return namedDestinations;
+	}
+
+	/**
+	 * Parses the content of a page (including its form XObjects) with the
+	 * processor, which is reset first. A processor keeps the fonts it has
+	 * parsed: reuse it for all pages of a document.
+	 */
+	public void processContent(final int pgNum, final PdfContentStreamProcessor processor) throws IOException {
+		PdfDictionary resources = reader.getPageN(pgNum).getAsDict(PdfName.RESOURCES);
+		processor.reset();
+		try {
+			processor.processContent(ContentByteUtils.getContentBytesForPage(reader, pgNum), resources);
+		} finally {
+			reader.releasePage(pgNum);
+		}
+	}
+
+	/**
+	 * Returns an independent copy of the parsed document (without parsing
+	 * the file again) for consumers which modify it, e.g. set page boxes.
+	 * The copy reads from its own view of the file, but the views share the
+	 * session's buffered source: the session and its copies mustn't be read
+	 * from concurrently.
+	 *
+	 * @return a reader the caller has to close
+	 */
+	public PdfReader createReaderCopy() {
+		return new ObjectStreamCachingReader(reader);
+	}
+
+	@Override
+	public void close() {
+		reader.close();
+	}
+}
@@ -0,0 +1,121 @@
+package at.laborg.briss.utils;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.itextpdf.text.exceptions.InvalidPdfException;
+import com.itextpdf.text.io.RandomAccessSourceFactory;
+import com.itextpdf.text.pdf.PRStream;
+import com.itextpdf.text.pdf.PRTokeniser;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfNumber;
+import com.itextpdf.text.pdf.PdfObject;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.RandomAccessFileOrArray;
+
+/*
+ In partial mode a PdfReader decodes the whole object stream an object is
+ stored in, and parses the stream's table of contents up to the object,
+ each time it reads the object.  Compressed documents put a hundred
+ objects and more into one stream, so looking up their pages one by one
+ decodes every stream a hundred times.  This reader keeps the last few
+ object streams it has decoded, along with their tables, instead
+ (consecutive objects, e.g. the pages of a document, are mostly stored in
+ the same stream).
+ */
+final class ObjectStreamCachingReader extends PdfReader {
+
+	private static final int CACHED_OBJECT_STREAMS = 8;
+
+	// not initialized here: the super constructor already reads objects
+	private long[] cachedStreamOffsets;
+	private byte[][] cachedStreamBytes;
+	private int[][] cachedObjectAddresses;
+	private int nextCacheSlot;
+
+	/**
+	 * Opens the file in partial mode.
+	 */
+	ObjectStreamCachingReader(final RandomAccessFileOrArray file) throws IOException {
+		super(file, null, true);
+	}
+
+	/**
+	 * @see PdfReader#PdfReader(PdfReader)
+	 */
+	ObjectStreamCachingReader(final ObjectStreamCachingReader reader) {
+		super(reader);
+	}
+
+	/**
+	 * Same as PdfReader's, but with the decoded stream and the addresses of
+	 * its objects from the cache.
+	 */
+	@Override
+	protected PdfObject readOneObjStm(final PRStream stream, final int idx) throws IOException {
+		int slot = getCacheSlot(stream);
+		if (idx >= cachedObjectAddresses[slot].length)
+			throw new InvalidPdfException("Error reading ObjStm");
+		int address = cachedObjectAddresses[slot][idx];
+		PRTokeniser fileTokens = tokens;
+		tokens = new PRTokeniser(new RandomAccessFileOrArray(
+				new RandomAccessSourceFactory().createSource(cachedStreamBytes[slot])));
+		try {
+			tokens.seek(address);
+			tokens.nextToken();
+			if (tokens.getTokenType() == PRTokeniser.TokenType.NUMBER) {
+				return new PdfNumber(tokens.getStringValue());
+			}
+			tokens.seek(address);
+			return readPRObject();
+		} finally {
+			tokens = fileTokens;
+		}
+	}
+
+	/**
+	 * @return the slot of the cache the stream is decoded into
+	 */
+	private int getCacheSlot(final PRStream stream) throws IOException {
+		if (cachedStreamOffsets == null) {
+			cachedStreamOffsets = new long[CACHED_OBJECT_STREAMS];
+			cachedStreamBytes = new byte[CACHED_OBJECT_STREAMS][];
+			cachedObjectAddresses = new int[CACHED_OBJECT_STREAMS][];
+		}
+		long offset = stream.getOffset();
+		for (int slot = 0; slot < CACHED_OBJECT_STREAMS; slot++) {
+			if (cachedStreamBytes[slot] != null && cachedStreamOffsets[slot] == offset)
+				return slot;
+		}
+		int slot = nextCacheSlot;
+		nextCacheSlot = (nextCacheSlot + 1) % CACHED_OBJECT_STREAMS;
+		byte[] streamBytes = getStreamBytes(stream, tokens.getFile());
+		cachedStreamOffsets[slot] = offset;
+		cachedStreamBytes[slot] = streamBytes;
+		cachedObjectAddresses[slot] = readObjectAddresses(stream, streamBytes);
+		return slot;
+	}
+
+	/**
+	 * @return the addresses of the objects as listed at the start of the
+	 *         stream: pairs of object number and offset
+	 */
+	private static int[] readObjectAddresses(final PRStream stream, final byte[] streamBytes) throws IOException {
+		int first = stream.getAsNumber(PdfName.FIRST).intValue();
+		// N is only an upper bound: like PdfReader, trust the table itself
+		PdfNumber declaredCount = stream.getAsNumber(PdfName.N);
+		int maxCount = declaredCount != null && declaredCount.intValue() > 0 ? declaredCount.intValue() : Integer.MAX_VALUE;
+		int[] addresses = new int[16];
+		int count = 0;
+		PRTokeniser tableTokens = new PRTokeniser(new RandomAccessFileOrArray(
+				new RandomAccessSourceFactory().createSource(streamBytes)));
+		while (count < maxCount && tableTokens.nextToken() && tableTokens.getTokenType() == PRTokeniser.TokenType.NUMBER
+				&& tableTokens.nextToken() && tableTokens.getTokenType() == PRTokeniser.TokenType.NUMBER) {
+			if (count == addresses.length) {
+				addresses = Arrays.copyOf(addresses, 2 * count);
+			}
+			addresses[count++] = tableTokens.intValue() + first;
+		}
+		return Arrays.copyOf(addresses, count);
+	}
+}
@@ -0,0 +1,69 @@
+package at.laborg.briss.utils;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfNumber;
+import com.itextpdf.text.pdf.PdfReader;
+
+/*
+ The boxes and the rotation of a page, read from its page dictionary (with
+ its inherited attributes) in one go: crops are calculated from all of them.
+ */
+public final class PageBoxes {
+
+	private final Rectangle mediaBox;
+	private final Rectangle cropBox;
+	private final int rotation;
+
+	private PageBoxes(final Rectangle mediaBox, final Rectangle cropBox, final int rotation) {
+		this.mediaBox = mediaBox;
+		this.cropBox = cropBox;
+		this.rotation = rotation;
+	}
+
+	static PageBoxes read(final PdfDictionary pageDict) {
+		PdfArray cropBox = pageDict.getAsArray(PdfName.CROPBOX);
+		PdfNumber rotate = pageDict.getAsNumber(PdfName.ROTATE);
+		int rotation = rotate == null ? 0 : rotate.intValue() % 360;
+		return new PageBoxes(PdfReader.getNormalizedRectangle(pageDict.getAsArray(PdfName.MEDIABOX)),
+				cropBox == null ? null : PdfReader.getNormalizedRectangle(cropBox),
+				rotation < 0 ? rotation + 360 : rotation);
+	}
+
+	public Rectangle getMediaBox() {
+		return mediaBox;
+	}
+
+	/**
+	 * @return the crop box or null if the page has none
+	 */
+	public Rectangle getCropBox() {
+		return cropBox;
+	}
+
+	/**
+	 * @return the crop box or, if the page has none, the media box
+	 */
+	public Rectangle getLayoutBox() {
+		return cropBox != null ? cropBox : mediaBox;
+	}
+
+	/**
+	 * @return the rotation in the range 0 .. 359
+	 */
+	public int getRotation() {
+		return rotation;
+	}
+
+	/**
+	 * @return the media and the crop box, as RectangleHandler takes them
+	 */
+	public List<Rectangle> getBoxes() {
+		return Arrays.asList(mediaBox, cropBox);
+	}
+}
@@ -0,0 +1,100 @@
+package at.laborg.briss.utils;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jpedal.PdfDecoder;
+import org.jpedal.exception.PdfException;
+
+import at.laborg.briss.model.ClusterImageData;
+import at.laborg.briss.model.CropFinder;
+import at.laborg.briss.model.CropRectangle;
+
+import com.itextpdf.text.Rectangle;
+
+/*
+ Finds a crop for every single page instead of one per cluster, for
+ documents whose content moves from page to page (e.g. scans).  Each page
+ is rendered at preview resolution, at which the CropFinder is tuned, and
+ handed to the CropFinder right away by the thread which rendered it: all
+ threads render and detect at the same time, and no more than one page
+ image per thread is held in memory.  As in ClusterRenderWorker each thread
+ owns its own PdfDecoder.
+ */
+public class PageCropWorker extends PageWorker {
+
+	private final File source;
+	private final int nrOfDecoders;
+	// indexed by page number; scale 0 for pages too big to be rendered
+	private final float[] scales;
+	private final CropRectangle[] crops;
+
+	public PageCropWorker(final DocumentSession session) {
+		this(session, ClusterRenderWorker.getDefaultNrOfDecoders());
+	}
+
+	public PageCropWorker(final DocumentSession session, final int nrOfDecoders) {
+		super();
+		this.source = session.getSourceFile();
+		this.nrOfDecoders = Math.max(1, nrOfDecoders);
+		// the session isn't thread-safe: read all page sizes up front
+		int pageCount = session.getPageCount();
+		this.scales = new float[pageCount + 1];
+		this.crops = new CropRectangle[pageCount + 1];
+		setNrOfWorkUnits(pageCount);
+		for (int pgNum = 1; pgNum <= pageCount; pgNum++) {
+			Rectangle layoutBox = session.getLayoutBox(pgNum);
+			int pageWidth = (int) layoutBox.getWidth();
+			int pageHeight = (int) layoutBox.getHeight();
+			if (ClusterImageData.isRenderable(pageWidth, pageHeight)) {
+				scales[pgNum] = ClusterImageData.calcPreviewScale(pageHeight);
+			}
+		}
+	}
+
+	public final int getNrOfPages() {
+		return crops.length - 1;
+	}
+
+	/**
+	 * @return the crop found for the page or null if the page couldn't be
+	 *         rendered (or the worker was cancelled before it got to the
+	 *         page); only valid once the worker has finished
+	 */
+	public final CropRectangle getCrop(final int pgNum) {
+		return crops[pgNum];
+	}
+
+	@Override
+	protected final void processPages() {
+		AtomicInteger nextPage = new AtomicInteger(1);
+		runInPool(Math.min(nrOfDecoders, getNrOfPages()), () -> findCrops(nextPage));
+	}
+
+	private void findCrops(final AtomicInteger nextPage) {
+		PdfDecoder pdfDecoder = null;
+		int pgNum;
+		while (!isCancelled() && (pgNum = nextPage.getAndIncrement()) < crops.length) {
+			if (scales[pgNum] > 0) {
+				try {
+					if (pdfDecoder == null) {
+						pdfDecoder = ClusterRenderWorker.openDecoder(source);
+						if (pdfDecoder == null)
+							return;
+					}
+					pdfDecoder.setPageParameters(scales[pgNum], pgNum);
+					// gray like the cluster previews the CropFinder's thresholds are tuned for
+					BufferedImage page = RenderCache.toGray(pdfDecoder.getPageAsImage(pgNum));
+					crops[pgNum] = CropFinder.calcCropRatioOfImg(page);
+				} catch (PdfException e) {
+					e.printStackTrace();
+				}
+			}
+			unitDone();
+		}
+		if (pdfDecoder != null) {
+			pdfDecoder.closePdfFile();
+		}
+	}
+}
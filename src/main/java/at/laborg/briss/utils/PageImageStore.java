@@ -0,0 +1,49 @@
+package at.laborg.briss.utils;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ In-memory store of the gray preview rasters rendered for one document, so
+ that re-clustering it (e.g. with other excludes) only renders pages which
+ were never rendered before.  Rasters are softly referenced: under memory
+ pressure they are dropped and rendered (or read from the RenderCache) again.
+ */
+public final class PageImageStore {
+
+	private final Map<Long, SoftReference<BufferedImage>> pages = new ConcurrentHashMap<>();
+	private String documentHash;
+
+	/**
+	 * @return the document's hash for the RenderCache, which reads the whole
+	 *         file: it's computed on the first call only
+	 */
+	public synchronized String getDocumentHash(final File source) throws IOException {
+		if (documentHash == null) {
+			documentHash = RenderCache.hashDocument(source);
+		}
+		return documentHash;
+	}
+
+	public BufferedImage get(final int pgNum, final float scale) {
+		SoftReference<BufferedImage> ref = pages.get(toKey(pgNum, scale));
+		return ref != null ? ref.get() : null;
+	}
+
+	/**
+	 * @return the gray image which was stored
+	 */
+	public BufferedImage put(final int pgNum, final float scale, final BufferedImage rendered) {
+		BufferedImage gray = RenderCache.toGray(rendered);
+		pages.put(toKey(pgNum, scale), new SoftReference<>(gray));
+		return gray;
+	}
+
+	private static long toKey(final int pgNum, final float scale) {
+		return ((long) pgNum << 32) | (Float.floatToIntBits(scale) & 0xffffffffL);
+	}
+}
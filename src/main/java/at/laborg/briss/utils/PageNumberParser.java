@@ -18,12 +18,12 @@
 package at.laborg.briss.utils;
 
 import java.text.ParseException;
-import java.util.HashSet;
-import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import at.laborg.briss.model.PageSet;
+
 public final class PageNumberParser {
 	private PageNumberParser() {
 	}
@@ -38,11 +38,11 @@ public final class PageNumberParser {
 	 * @return
 	 * @throws ParseException
 	 */
-	public static Set<Integer> parsePageNumberRanges(final String input, final int pageCount)
+	public static PageSet parsePageNumberRanges(final String input, final int pageCount)
 			throws ParseException {
 
 		// System.out.println("I: "+input);
-		Set<Integer> rv = new HashSet<>();
+		PageSet rv = new PageSet();
 		for ( String range : input.split(";+") ) {
 			// System.out.println("R: "+range);
 			final String pgnxs[] = range.split(",");
@@ -56,10 +56,7 @@ public final class PageNumberParser {
 			}
 			max = max != null ? max : min;
 			if( max < min ) { throw new ParseException("range '"+range+"' violates m<=n requirement: "+min+" > "+max, 0 ); }
-			for( int ix = min; ix <= max; ++ix ) {
-				// System.out.println("X: "+ix);
-				rv.add( ix );
-			}
+			rv.addRange( min, max );
 		}
 		return rv;
 	}
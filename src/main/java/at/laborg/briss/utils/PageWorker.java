@@ -0,0 +1,120 @@
+package at.laborg.briss.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ Base of the workers which process the pages of a document in a pool of
+ threads.  Instead of being polled, a worker pushes its progress to a
+ listener whenever a page is done and signals the end of its work through a
+ future.  It can be cancelled at any time: its threads stop before they
+ start their next page, the current one is finished.
+ */
+public abstract class PageWorker extends Thread {
+
+	/**
+	 * Notified from the worker's threads, i.e. not on the event dispatch
+	 * thread.
+	 */
+	public interface ProgressListener {
+		void progressChanged(int doneUnits, int totalUnits);
+	}
+
+	private final AtomicInteger workerUnitCounter = new AtomicInteger(0);
+	private final CompletableFuture<Void> completion = new CompletableFuture<>();
+	private volatile int nrOfWorkUnits = 0;
+	private volatile boolean cancelled = false;
+	private volatile ProgressListener progressListener = null;
+
+	public final void setProgressListener(final ProgressListener progressListener) {
+		this.progressListener = progressListener;
+	}
+
+	public final int getWorkerUnitCounter() {
+		return workerUnitCounter.get();
+	}
+
+	/**
+	 * @return the number of units the worker is going to process; might only
+	 *         be known once the worker has started
+	 */
+	public final int getNrOfWorkUnits() {
+		return nrOfWorkUnits;
+	}
+
+	protected final void setNrOfWorkUnits(final int nrOfWorkUnits) {
+		this.nrOfWorkUnits = nrOfWorkUnits;
+	}
+
+	/**
+	 * Stops the worker after the pages which are being processed right now.
+	 */
+	public final void cancel() {
+		cancelled = true;
+	}
+
+	public final boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * @return a future which is completed once the worker has finished and
+	 *         is cancelled if the worker was
+	 */
+	public final CompletableFuture<Void> getCompletion() {
+		return completion;
+	}
+
+	@Override
+	public final void run() {
+		try {
+			processPages();
+		} catch (RuntimeException | Error e) {
+			completion.completeExceptionally(e);
+			throw e;
+		}
+		if (cancelled) {
+			completion.cancel(false);
+		} else {
+			completion.complete(null);
+		}
+	}
+
+	protected abstract void processPages();
+
+	/**
+	 * Runs the task in the given number of threads and waits for all of
+	 * them to finish.
+	 */
+	protected final void runInPool(final int nrOfThreads, final Runnable task) {
+		List<Thread> poolThreads = new ArrayList<>();
+		for (int i = 0; i < nrOfThreads; i++) {
+			Thread poolThread = new Thread(task, getName() + "-decoder-" + i);
+			poolThread.setDaemon(true);
+			poolThreads.add(poolThread);
+			poolThread.start();
+		}
+		try {
+			for (Thread poolThread : poolThreads) {
+				poolThread.join();
+			}
+		} catch (InterruptedException e) {
+			cancel();
+			poolThreads.forEach(Thread::interrupt);
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * To be called whenever a unit of work is done.
+	 */
+	protected final void unitDone() {
+		int doneUnits = workerUnitCounter.incrementAndGet();
+		ProgressListener listener = progressListener;
+		if (listener != null) {
+			listener.progressChanged(doneUnits, nrOfWorkUnits);
+		}
+	}
+}
@@ -4,16 +4,70 @@ import java.util.List;
 
 import com.itextpdf.text.Rectangle;
 
+import at.laborg.briss.model.CropRectangle;
+
 final class RectangleHandler {
 	private RectangleHandler() {}
 
 	public static Rectangle calculateScaledRectangle(
-			final List<Rectangle> boxes, final Float[] ratios,
+			final List<Rectangle> boxes, final CropRectangle ratios,
 			final int rotation) {
-		if (ratios == null || boxes.size() == 0)
+		if (ratios == null)
 			return null;
+		Rectangle smallestBox = findSmallestBox(boxes);
+		if (smallestBox == null)
+			return null; // no useable box was found
+
+		// rotate the ratios according to the rotation of the page
+		float[] rotRatios = rotateRatios(ratios, rotation);
+		// use smallest box as basis for calculation
+		Rectangle scaledBox = new Rectangle(smallestBox);
+		scaledBox.setLeft(smallestBox.getLeft()     + (smallestBox.getWidth()  *      rotRatios[0]));
+		scaledBox.setBottom(smallestBox.getBottom() + (smallestBox.getHeight() *      rotRatios[1]));
+		scaledBox.setRight(smallestBox.getLeft()    + (smallestBox.getWidth()  * (1 - rotRatios[2])));
+		scaledBox.setTop(smallestBox.getBottom()    + (smallestBox.getHeight() * (1 - rotRatios[3])));
+		return scaledBox;
+	}
+
+	/**
+	 * The inverse of calculateScaledRectangle: calculates the ratios which
+	 * crop the page to the given rectangle (in user space).
+	 *
+	 * @return the ratios or null if the rectangle lies outside of the page
+	 */
+	public static CropRectangle calculateRatios(
+			final List<Rectangle> boxes, final Rectangle cropBox,
+			final int rotation) {
+		Rectangle smallestBox = findSmallestBox(boxes);
+		if (smallestBox == null)
+			return null;
+		float left   = Math.max(cropBox.getLeft()  , smallestBox.getLeft()  );
+		float bottom = Math.max(cropBox.getBottom(), smallestBox.getBottom());
+		float right  = Math.min(cropBox.getRight() , smallestBox.getRight() );
+		float top    = Math.min(cropBox.getTop()   , smallestBox.getTop()   );
+		if (left >= right || bottom >= top)
+			return null;
+		float[] rotRatios = new float[4];
+		rotRatios[0] = (left                    - smallestBox.getLeft()  ) / smallestBox.getWidth();
+		rotRatios[1] = (bottom                  - smallestBox.getBottom()) / smallestBox.getHeight();
+		rotRatios[2] = (smallestBox.getRight()  - right                  ) / smallestBox.getWidth();
+		rotRatios[3] = (smallestBox.getTop()    - top                    ) / smallestBox.getHeight();
+		// rotate into the orientation the page is shown in: rotateRatios shifts
+		// once per 90 degrees from the rotation up to 360 and 4 shifts are the
+		// identity, so undoing it takes one shift per 90 degrees of rotation
+		int shifts = ((rotation / 90) % 4 + 4) % 4;
+		for (int i = 0; i < shifts; i++) {
+			float tmpValue = rotRatios[0];
+			rotRatios[0] = rotRatios[1];
+			rotRatios[1] = rotRatios[2];
+			rotRatios[2] = rotRatios[3];
+			rotRatios[3] = tmpValue;
+		}
+		return new CropRectangle(rotRatios[0], rotRatios[1], rotRatios[2], rotRatios[3]);
+	}
+
+	private static Rectangle findSmallestBox(final List<Rectangle> boxes) {
 		Rectangle smallestBox = null;
-		// find smallest box
 		float smallestSquare = Float.MAX_VALUE;
 		for (Rectangle box : boxes) {
 			if (box != null) {
@@ -27,18 +81,7 @@ final class RectangleHandler {
 				}
 			}
 		}
-		if (smallestBox == null)
-			return null; // no useable box was found
-
-		// rotate the ratios according to the rotation of the page
-		float[] rotRatios = rotateRatios(ratios, rotation);
-		// use smallest box as basis for calculation
-		Rectangle scaledBox = new Rectangle(smallestBox);
-		scaledBox.setLeft(smallestBox.getLeft()     + (smallestBox.getWidth()  *      rotRatios[0]));
-		scaledBox.setBottom(smallestBox.getBottom() + (smallestBox.getHeight() *      rotRatios[1]));
-		scaledBox.setRight(smallestBox.getLeft()    + (smallestBox.getWidth()  * (1 - rotRatios[2])));
-		scaledBox.setTop(smallestBox.getBottom()    + (smallestBox.getHeight() * (1 - rotRatios[3])));
-		return scaledBox;
+		return smallestBox;
 	}
 
 	/**
@@ -48,11 +91,8 @@ final class RectangleHandler {
 	 * @param rotation
 	 * @return
 	 */
-	private static float[] rotateRatios(final Float[] ratios, final int rotation) {
-		float[] tmpRatios = new float[4];
-		for (int i = 0; i < 4; i++) {
-			tmpRatios[i] = ratios[i];
-		}
+	private static float[] rotateRatios(final CropRectangle ratios, final int rotation) {
+		float[] tmpRatios = { ratios.getxToLeft(), ratios.getyToBottom(), ratios.getxToRight(), ratios.getyToTop() };
 		int tmpRotation = rotation;
 		while (tmpRotation > 0 && tmpRotation < 360) {
 			float tmpValue = tmpRatios[0];
@@ -0,0 +1,194 @@
+package at.laborg.briss.utils;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/*
+ On-disk cache of rendered preview pages, shared by all runs on this machine.
+ An entry is the deflated gray raster of one page, keyed by the SHA-256 of
+ the document's content, the page number and the render scale.  When the
+ cache grows beyond its size limit the least recently used entries are
+ deleted.
+ */
+public final class RenderCache {
+
+	public static final String CACHE_DIR_PROPERTY = "briss.renderCache.dir";
+	public static final String CACHE_SIZE_PROPERTY = "briss.renderCache.maxMB";
+
+	private static final int DEFAULT_CACHE_SIZE_MB = 256;
+	private static final String ENTRY_SUFFIX = ".gray";
+	private static final int ENTRY_MAGIC = 0x42524331; // "BRC1"
+	// after an eviction the cache is this full, so that not every put evicts
+	private static final double EVICT_TO_RATIO = 0.9;
+
+	private final File cacheDir;
+	private final long maxSize;
+	private long currentSize = -1;
+
+	public RenderCache(final File cacheDir, final long maxSize) {
+		this.cacheDir = cacheDir;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Creates the cache configured via the system properties
+	 * briss.renderCache.dir and briss.renderCache.maxMB.
+	 *
+	 * @return the cache or null if caching is disabled (maxMB = 0) or the
+	 *         cache directory cannot be created
+	 */
+	public static RenderCache createDefault() {
+		long maxMB = Long.getLong(CACHE_SIZE_PROPERTY, DEFAULT_CACHE_SIZE_MB);
+		if (maxMB <= 0)
+			return null;
+		File dir = new File(System.getProperty(CACHE_DIR_PROPERTY,
+				System.getProperty("java.io.tmpdir") + File.separator + "briss-render-cache"));
+		if (!dir.isDirectory() && !dir.mkdirs())
+			return null;
+		return new RenderCache(dir, maxMB * 1024 * 1024);
+	}
+
+	public static String hashDocument(final File source) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		byte[] buf = new byte[1024 * 1024];
+		try (InputStream in = new FileInputStream(source)) {
+			int cnt;
+			while ((cnt = in.read(buf)) > 0) {
+				digest.update(buf, 0, cnt);
+			}
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte b : digest.digest()) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return the cached gray page or null if it isn't cached (or unreadable)
+	 */
+	public BufferedImage get(final String docHash, final int pgNum, final float scale) {
+		File entry = getEntryFile(docHash, pgNum, scale);
+		if (!entry.isFile())
+			return null;
+		try (DataInputStream in = new DataInputStream(new InflaterInputStream(
+				new BufferedInputStream(new FileInputStream(entry))))) {
+			if (in.readInt() != ENTRY_MAGIC)
+				throw new IOException("Not a render cache entry: " + entry);
+			BufferedImage image = new BufferedImage(in.readInt(), in.readInt(), BufferedImage.TYPE_BYTE_GRAY);
+			in.readFully(((DataBufferByte) image.getRaster().getDataBuffer()).getData());
+			// last modification time serves as LRU timestamp
+			entry.setLastModified(System.currentTimeMillis());
+			return image;
+		} catch (IOException | IllegalArgumentException e) {
+			entry.delete();
+			return null;
+		}
+	}
+
+	/**
+	 * Stores a rendered page; the image is converted to gray if necessary.
+	 *
+	 * @return the gray image which was stored
+	 */
+	public BufferedImage put(final String docHash, final int pgNum, final float scale, final BufferedImage rendered) {
+		BufferedImage gray = toGray(rendered);
+		File entry = getEntryFile(docHash, pgNum, scale);
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		File tmp = null;
+		boolean moved = false;
+		try {
+			tmp = File.createTempFile("entry", ".tmp", cacheDir);
+			try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tmp)), deflater))) {
+				out.writeInt(ENTRY_MAGIC);
+				out.writeInt(gray.getWidth());
+				out.writeInt(gray.getHeight());
+				out.write(((DataBufferByte) gray.getRaster().getDataBuffer()).getData());
+			}
+			// other threads or processes only ever see complete entries
+			Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			moved = true;
+			addToSize(entry.length());
+		} catch (IOException e) {
+			// the cache is an optimization only: rendering goes on without it
+		} finally {
+			deflater.end();
+			// a partly written entry isn't counted against the limit
+			if (tmp != null && !moved) {
+				tmp.delete();
+			}
+		}
+		return gray;
+	}
+
+	private File getEntryFile(final String docHash, final int pgNum, final float scale) {
+		return new File(cacheDir, docHash + "-" + pgNum + "-"
+				+ Integer.toHexString(Float.floatToIntBits(scale)) + ENTRY_SUFFIX);
+	}
+
+	private synchronized void addToSize(final long entrySize) {
+		if (currentSize < 0) {
+			currentSize = Arrays.stream(listEntries()).mapToLong(File::length).sum();
+		} else {
+			currentSize += entrySize;
+		}
+		if (currentSize > maxSize) {
+			evict();
+		}
+	}
+
+	private void evict() {
+		File[] entries = listEntries();
+		Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+		currentSize = Arrays.stream(entries).mapToLong(File::length).sum();
+		for (File entry : entries) {
+			if (currentSize <= maxSize * EVICT_TO_RATIO)
+				break;
+			long entrySize = entry.length();
+			if (entry.delete()) {
+				currentSize -= entrySize;
+			}
+		}
+	}
+
+	private File[] listEntries() {
+		File[] entries = cacheDir.listFiles((dir, name) -> name.endsWith(ENTRY_SUFFIX));
+		return entries != null ? entries : new File[0];
+	}
+
+	static BufferedImage toGray(final BufferedImage image) {
+		if (image.getType() == BufferedImage.TYPE_BYTE_GRAY)
+			return image;
+		BufferedImage gray = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+		Graphics2D g = gray.createGraphics();
+		g.drawImage(image, 0, 0, null);
+		g.dispose();
+		return gray;
+	}
+}
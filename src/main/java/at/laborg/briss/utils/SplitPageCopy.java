@@ -0,0 +1,172 @@
+package at.laborg.briss.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.itextpdf.text.Document;
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.pdf.BadPdfFormatException;
+import com.itextpdf.text.pdf.PRIndirectReference;
+import com.itextpdf.text.pdf.PRStream;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfImportedPage;
+import com.itextpdf.text.pdf.PdfIndirectReference;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfObject;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfSmartCopy;
+import com.itextpdf.text.pdf.PdfStream;
+import com.itextpdf.text.pdf.RefKey;
+
+/*
+ PdfSmartCopy recognizes the objects it has written already by their
+ content: each time a page is added it reads and hashes every stream and
+ dictionary the page refers to, images included.  A split page is added
+ once per crop rectangle, and all these copies refer to the same content
+ streams, resources and annotations.  This copy remembers which objects it
+ has written for the page added last, so that the copies after the first
+ one refer to them directly instead of reading and hashing them again.
+ The output is the same: for each of these objects PdfSmartCopy would have
+ found the one written for the first copy.  Only the page dictionaries are
+ written once per copy, each with its own boxes.
+
+ A page can also be added with content of its own instead of the page's
+ content streams (see ContentPruner).  The streams copied can be
+ recompressed: those which are flate compressed or not compressed at all,
+ the others (e.g. JPEG images) and those with decode parameters (e.g.
+ predictors) are copied as they are.
+
+ Freeing the reader (see DocumentCropper.releasePage) drops the mapping of
+ the source objects to the ones written, except for the pages: a link to
+ a page added before, or after, the flush still points to its copy.
+ */
+final class SplitPageCopy extends PdfSmartCopy {
+
+	private final HashMap<RefKey, PdfIndirectReference> pageObjects = new HashMap<>();
+	private PdfImportedPage lastPage;
+	// the content of the page being added, if it replaces the page's own
+	private byte[] pageContent;
+	private boolean recompress;
+	// the page objects of the reader freed last, which are kept mapped
+	private PdfReader pagesReader;
+	private Set<RefKey> pageKeys;
+
+	SplitPageCopy(final Document document, final OutputStream os) throws DocumentException {
+		super(document, os);
+	}
+
+	@Override
+	public void addPage(final PdfImportedPage iPage) throws IOException, BadPdfFormatException {
+		if (iPage != lastPage) {
+			pageObjects.clear();
+			lastPage = iPage;
+		}
+		super.addPage(iPage);
+	}
+
+	/**
+	 * Recompresses the streams copied at the level, and compresses the
+	 * streams written at it. Level 0 writes them without a filter instead
+	 * of in deflate's stored blocks.
+	 */
+	void setRecompressionLevel(final int level) {
+		setCompressionLevel(level);
+		recompress = true;
+	}
+
+	/**
+	 * Adds the page with the content instead of its own content streams,
+	 * which aren't copied.
+	 */
+	void addPage(final PdfImportedPage iPage, final byte[] content) throws IOException, BadPdfFormatException {
+		pageContent = content;
+		try {
+			addPage(iPage);
+		} finally {
+			pageContent = null;
+		}
+	}
+
+	/**
+	 * The page dictionary is the first one addPage copies: with a content
+	 * of its own, it's copied without its content streams, which are
+	 * replaced by a new one.
+	 */
+	@Override
+	protected PdfDictionary copyDictionary(final PdfDictionary in) throws IOException, BadPdfFormatException {
+		if (pageContent == null)
+			return super.copyDictionary(in);
+		byte[] content = pageContent;
+		pageContent = null;
+		PdfObject contents = in.get(PdfName.CONTENTS);
+		in.remove(PdfName.CONTENTS);
+		PdfDictionary page = super.copyDictionary(in);
+		in.put(PdfName.CONTENTS, contents);
+		PdfStream stream = new PdfStream(content);
+		if (getCompressionLevel() != PdfStream.NO_COMPRESSION) {
+			stream.flateCompress(getCompressionLevel());
+		}
+		page.put(PdfName.CONTENTS, addToBody(stream).getIndirectReference());
+		return page;
+	}
+
+	@Override
+	protected PdfStream copyStream(final PRStream in) throws IOException, BadPdfFormatException {
+		PdfStream copy = super.copyStream(in);
+		PdfObject filter = PdfReader.getPdfObjectRelease(in.get(PdfName.FILTER));
+		if (recompress && in.get(PdfName.DECODEPARMS) == null
+				&& (filter == null || PdfName.FLATEDECODE.equals(filter))) {
+			((PRStream) copy).setData(PdfReader.getStreamBytes(in), getCompressionLevel() != PdfStream.NO_COMPRESSION,
+					getCompressionLevel());
+		}
+		return copy;
+	}
+
+	@Override
+	protected PdfIndirectReference copyIndirect(final PRIndirectReference in) throws IOException,
+			BadPdfFormatException {
+		RefKey key = new RefKey(in);
+		PdfIndirectReference copy = pageObjects.get(key);
+		if (copy == null) {
+			copy = super.copyIndirect(in);
+			pageObjects.put(key, copy);
+		}
+		return copy;
+	}
+
+	@Override
+	public void freeReader(final PdfReader reader) throws IOException {
+		pageObjects.clear();
+		lastPage = null;
+		freeReaderKeepingPages(indirectMap, reader);
+	}
+
+	/**
+	 * Frees the reader, but keeps the mapping of its pages, both of those
+	 * added and of those referred to (e.g. by links) before they are added.
+	 */
+	private <R> void freeReaderKeepingPages(final HashMap<PdfReader, HashMap<RefKey, R>> referencesByReader,
+			final PdfReader reader) throws IOException {
+		HashMap<RefKey, R> references = referencesByReader.get(reader);
+		super.freeReader(reader);
+		if (references == null)
+			return;
+		references.keySet().retainAll(getPageKeys(reader));
+		referencesByReader.put(reader, references);
+	}
+
+	private Set<RefKey> getPageKeys(final PdfReader reader) {
+		if (reader != pagesReader) {
+			pageKeys = new HashSet<>();
+			for (int pageNumber = 1; pageNumber <= reader.getNumberOfPages(); pageNumber++) {
+				pageKeys.add(new RefKey(reader.getPageOrigRef(pageNumber)));
+				reader.releasePage(pageNumber);
+			}
+			pagesReader = reader;
+		}
+		return pageKeys;
+	}
+}
@@ -0,0 +1,231 @@
+package at.laborg.briss.utils;
+
+import java.io.IOException;
+import java.util.List;
+
+import at.laborg.briss.model.ClusterDefinition;
+import at.laborg.briss.model.CropRectangle;
+import at.laborg.briss.model.PageCluster;
+import at.laborg.briss.model.PageSet;
+
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.pdf.parser.ExtRenderListener;
+import com.itextpdf.text.pdf.parser.ImageRenderInfo;
+import com.itextpdf.text.pdf.parser.LineSegment;
+import com.itextpdf.text.pdf.parser.Matrix;
+import com.itextpdf.text.pdf.parser.Path;
+import com.itextpdf.text.pdf.parser.PathConstructionRenderInfo;
+import com.itextpdf.text.pdf.parser.PathPaintingRenderInfo;
+import com.itextpdf.text.pdf.parser.PdfContentStreamProcessor;
+import com.itextpdf.text.pdf.parser.TextRenderInfo;
+import com.itextpdf.text.pdf.parser.Vector;
+
+/*
+ Auto crop without rendering: the crop is the bounding box of what a page's
+ content stream draws (text, paths and images), as found by iText's content
+ parser.  Meant for born-digital documents; for scans, whose content is one
+ big image, the raster CropFinder has to be used.
+
+ A finder parses all pages it is asked for with the same content processor,
+ so fonts shared by the pages are parsed only once.  Not thread-safe.
+ */
+public final class VectorCropFinder {
+
+	// text render modes which don't paint anything (invisible, add to clip only)
+	private static final int TEXT_RENDER_MODE_INVISIBLE = 3;
+	private static final int TEXT_RENDER_MODE_CLIP = 7;
+	// paths and images at least this close to all page edges are taken as backgrounds
+	private static final float BACKGROUND_TOLERANCE = 1f;
+
+	private final DocumentSession session;
+	private final ContentBoundsListener listener = new ContentBoundsListener();
+	private final PdfContentStreamProcessor processor = new PdfContentStreamProcessor(listener);
+
+	public VectorCropFinder(final DocumentSession session) {
+		this.session = session;
+	}
+
+	/**
+	 * @return the crop of the page's content or null if the page is blank
+	 *         (or its content can't be parsed)
+	 */
+	public CropRectangle findCrop(final int pgNum) throws IOException {
+		PageBoxes pageBoxes = session.getPageBoxes(pgNum);
+		listener.reset(pageBoxes.getLayoutBox());
+		try {
+			session.processContent(pgNum, processor);
+		} catch (RuntimeException e) {
+			// iText fails on broken fonts or resources with runtime
+			// exceptions: one such page doesn't spoil the others' crops
+			return null;
+		}
+		if (listener.isEmpty())
+			return null;
+		return RectangleHandler.calculateRatios(pageBoxes.getBoxes(), listener.getBounds(), pageBoxes.getRotation());
+	}
+
+	/**
+	 * @return the crop which keeps the content of all the pages, null if all
+	 *         of them are blank
+	 */
+	public CropRectangle findCrop(final PageSet pages) throws IOException {
+		CropRectangle union = null;
+		for (int pgNum : pages.toArray()) {
+			CropRectangle crop = findCrop(pgNum);
+			if (crop == null)
+				continue;
+			// the smaller ratio of each edge cuts away less
+			union = union == null ? crop : new CropRectangle(
+					Math.min(union.getxToLeft(), crop.getxToLeft()),
+					Math.min(union.getyToBottom(), crop.getyToBottom()),
+					Math.min(union.getxToRight(), crop.getxToRight()),
+					Math.min(union.getyToTop(), crop.getyToTop()));
+		}
+		return union;
+	}
+
+	/**
+	 * Adds the crop of its pages' content to every cluster (which has any).
+	 */
+	public void addCrops(final ClusterDefinition clusters) throws IOException {
+		for (PageCluster cluster : clusters.getClusterList()) {
+			CropRectangle crop = findCrop(cluster.getMemberPgNums());
+			if (crop != null) {
+				cluster.addCropRatio(crop);
+			}
+		}
+	}
+
+	private static final class ContentBoundsListener implements ExtRenderListener {
+		private Rectangle pageBox;
+		private float left, bottom, right, top;
+		// bounds of the path under construction
+		private float pathLeft, pathBottom, pathRight, pathTop;
+		private boolean pathEmpty = true;
+
+		void reset(final Rectangle pageBox) {
+			this.pageBox = pageBox;
+			left = bottom = Float.MAX_VALUE;
+			right = top = -Float.MAX_VALUE;
+			pathEmpty = true;
+		}
+
+		boolean isEmpty() {
+			return left > right;
+		}
+
+		Rectangle getBounds() {
+			return new Rectangle(left, bottom, right, top);
+		}
+
+		@Override
+		public void beginTextBlock() {
+		}
+
+		@Override
+		public void endTextBlock() {
+		}
+
+		@Override
+		public void renderText(final TextRenderInfo renderInfo) {
+			if (renderInfo.getTextRenderMode() == TEXT_RENDER_MODE_INVISIBLE
+					|| renderInfo.getTextRenderMode() == TEXT_RENDER_MODE_CLIP
+					|| renderInfo.getText().trim().isEmpty())
+				return;
+			addSegment(renderInfo.getAscentLine());
+			addSegment(renderInfo.getDescentLine());
+		}
+
+		private void addSegment(final LineSegment segment) {
+			addPoint(segment.getStartPoint().get(Vector.I1), segment.getStartPoint().get(Vector.I2));
+			addPoint(segment.getEndPoint().get(Vector.I1), segment.getEndPoint().get(Vector.I2));
+		}
+
+		@Override
+		public void renderImage(final ImageRenderInfo renderInfo) {
+			// an image fills the unit square in image space
+			Matrix ctm = renderInfo.getImageCTM();
+			startPath();
+			addPathPoint(0, 0, ctm);
+			addPathPoint(1, 0, ctm);
+			addPathPoint(0, 1, ctm);
+			addPathPoint(1, 1, ctm);
+			addPath(0);
+		}
+
+		@Override
+		public void modifyPath(final PathConstructionRenderInfo renderInfo) {
+			List<Float> data = renderInfo.getSegmentData();
+			Matrix ctm = renderInfo.getCtm();
+			if (renderInfo.getOperation() == PathConstructionRenderInfo.RECT) {
+				float x = data.get(0), y = data.get(1), w = data.get(2), h = data.get(3);
+				addPathPoint(x, y, ctm);
+				addPathPoint(x + w, y, ctm);
+				addPathPoint(x, y + h, ctm);
+				addPathPoint(x + w, y + h, ctm);
+			} else if (data != null) {
+				// end and control points: a curve lies within their convex hull
+				for (int i = 0; i + 1 < data.size(); i += 2) {
+					addPathPoint(data.get(i), data.get(i + 1), ctm);
+				}
+			}
+		}
+
+		@Override
+		public Path renderPath(final PathPaintingRenderInfo renderInfo) {
+			if (renderInfo.getOperation() != PathPaintingRenderInfo.NO_OP) {
+				boolean stroked = (renderInfo.getOperation() & PathPaintingRenderInfo.STROKE) != 0;
+				addPath(stroked ? renderInfo.getLineWidth() / 2 : 0);
+			}
+			startPath();
+			return null;
+		}
+
+		@Override
+		public void clipPath(final int rule) {
+			// clipping only ever shrinks the content: the result gets
+			// intersected with the page anyway
+		}
+
+		private void startPath() {
+			pathEmpty = true;
+		}
+
+		private void addPathPoint(final float x, final float y, final Matrix ctm) {
+			Vector point = new Vector(x, y, 1).cross(ctm);
+			float px = point.get(Vector.I1);
+			float py = point.get(Vector.I2);
+			if (pathEmpty) {
+				pathLeft = pathRight = px;
+				pathBottom = pathTop = py;
+				pathEmpty = false;
+			} else {
+				pathLeft = Math.min(pathLeft, px);
+				pathRight = Math.max(pathRight, px);
+				pathBottom = Math.min(pathBottom, py);
+				pathTop = Math.max(pathTop, py);
+			}
+		}
+
+		private void addPath(final float margin) {
+			if (pathEmpty)
+				return;
+			// a page-filling rectangle or image (e.g. a white background)
+			// says nothing about where the content is
+			if (pathLeft <= pageBox.getLeft() + BACKGROUND_TOLERANCE
+					&& pathBottom <= pageBox.getBottom() + BACKGROUND_TOLERANCE
+					&& pathRight >= pageBox.getRight() - BACKGROUND_TOLERANCE
+					&& pathTop >= pageBox.getTop() - BACKGROUND_TOLERANCE)
+				return;
+			addPoint(pathLeft - margin, pathBottom - margin);
+			addPoint(pathRight + margin, pathTop + margin);
+		}
+
+		private void addPoint(final float x, final float y) {
+			left = Math.min(left, x);
+			right = Math.max(right, x);
+			bottom = Math.min(bottom, y);
+			top = Math.max(top, y);
+		}
+	}
+}
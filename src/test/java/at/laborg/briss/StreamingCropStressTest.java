@@ -0,0 +1,110 @@
+package at.laborg.briss;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import at.laborg.briss.exception.CropException;
+import at.laborg.briss.model.ClusterDefinition;
+import at.laborg.briss.model.CropDefinition;
+import at.laborg.briss.model.CropRectangle;
+import at.laborg.briss.model.PageCluster;
+import at.laborg.briss.utils.ClusterCreator;
+import at.laborg.briss.utils.DocumentCropper;
+import at.laborg.briss.utils.DocumentSession;
+
+import com.itextpdf.text.Document;
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.PageSize;
+import com.itextpdf.text.pdf.BaseFont;
+import com.itextpdf.text.pdf.PdfContentByte;
+import com.itextpdf.text.pdf.PdfDestination;
+import com.itextpdf.text.pdf.PdfOutline;
+import com.itextpdf.text.pdf.PdfWriter;
+
+/**
+ * Crops a synthetic document of 50000 text pages (with object streams, an
+ * outline and named destinations) as a whole and split into halves, to
+ * check that cropping long documents needs only a few hundred bytes of heap
+ * per page. Run it with a small heap, e.g. java -Xmx64m, and optionally pass
+ * another number of pages.
+ */
+public final class StreamingCropStressTest {
+
+	private static final int DEFAULT_PAGE_COUNT = 50000;
+	private static final int PAGES_PER_CHAPTER = 100;
+
+	private StreamingCropStressTest() {
+	}
+
+	public static void main(final String[] args) throws IOException, DocumentException, CropException {
+		int pageCount = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PAGE_COUNT;
+		File source = File.createTempFile("briss-stress", ".pdf");
+		File destination = File.createTempFile("briss-stress-cropped", ".pdf");
+		source.deleteOnExit();
+		destination.deleteOnExit();
+
+		long start = System.currentTimeMillis();
+		createDocument(source, pageCount);
+		System.out.println("Created " + pageCount + " pages in " + (System.currentTimeMillis() - start) + " ms");
+
+		crop(source, destination, false);
+		checkPageCount(destination, pageCount);
+		crop(source, destination, true);
+		checkPageCount(destination, 2 * pageCount);
+
+		System.out.println("Cropped within a heap of " + (Runtime.getRuntime().maxMemory() >> 20) + " MB");
+	}
+
+	private static void createDocument(final File file, final int pageCount) throws IOException, DocumentException {
+		Document document = new Document(PageSize.A4);
+		PdfWriter writer = PdfWriter.getInstance(document, new FileOutputStream(file));
+		writer.setFullCompression();
+		document.open();
+		BaseFont font = BaseFont.createFont();
+		PdfContentByte content = writer.getDirectContent();
+		for (int page = 1; page <= pageCount; page++) {
+			content.beginText();
+			content.setFontAndSize(font, 11);
+			for (int line = 0; line < 40; line++) {
+				content.setTextMatrix(70, 760 - line * 16);
+				content.showText("Page " + page + ", line " + line + ": lorem ipsum dolor sit amet");
+			}
+			content.endText();
+			if (page % PAGES_PER_CHAPTER == 1) {
+				new PdfOutline(content.getRootOutline(), new PdfDestination(PdfDestination.FIT), "Chapter " + page);
+				content.localDestination("chapter" + page, new PdfDestination(PdfDestination.FIT));
+			}
+			document.newPage();
+		}
+		document.close();
+	}
+
+	private static void crop(final File source, final File destination, final boolean split)
+			throws IOException, DocumentException, CropException {
+		long start = System.currentTimeMillis();
+		try (DocumentSession session = DocumentSession.open(source)) {
+			ClusterDefinition clusterDefinition = ClusterCreator.clusterPages(session, null);
+			for (PageCluster cluster : clusterDefinition.getClusterList()) {
+				if (split) {
+					cluster.addCropRatio(new CropRectangle(0.1f, 0.5f, 0.1f, 0.05f));
+					cluster.addCropRatio(new CropRectangle(0.1f, 0.05f, 0.1f, 0.5f));
+				} else {
+					cluster.addCropRatio(new CropRectangle(0.1f, 0.05f, 0.1f, 0.05f));
+				}
+			}
+			CropDefinition cropDefinition = CropDefinition.createCropDefinition(source, destination, clusterDefinition);
+			DocumentCropper.crop(cropDefinition, session);
+		}
+		System.out.println("Cropped " + (split ? "split into halves" : "as a whole") + " in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	private static void checkPageCount(final File file, final int expectedPageCount) throws IOException {
+		// a PdfReader reading the whole file wouldn't fit into the heap
+		try (DocumentSession session = DocumentSession.open(file)) {
+			if (session.getPageCount() != expectedPageCount)
+				throw new IllegalStateException("Expected " + expectedPageCount + " pages, got " + session.getPageCount());
+		}
+	}
+}